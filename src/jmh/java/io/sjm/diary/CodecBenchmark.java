@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion between entries and the JSON plaintext that gets encrypted, by {@link EntryCodec}
+ * and, for comparison, through org.json as entries used to be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int size;
+
+    private Entry entry;
+    private byte[] json;
+
+    @Setup public void setUp() {
+        entry = new Entry(LocalDate.of(2015, 6, 21), new SyntheticDiary(size).text(size));
+        json = EntryCodec.encode(entry);
+    }
+
+    @Benchmark public byte[] serialize() {
+        return EntryCodec.encode(entry);
+    }
+
+    @Benchmark public Entry parse() {
+        return EntryCodec.decode(json);
+    }
+
+    @Benchmark public byte[] serializeJSONObject() {
+        JSONStringer stringer = new JSONStringer();
+        stringer.object().key("date").value(String.valueOf(entry.getDate())).key("entry")
+            .value(entry.getText()).endObject();
+
+        return stringer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark public Entry parseJSONObject() {
+        JSONObject object = new JSONObject(new String(json, StandardCharsets.UTF_8));
+
+        return new Entry(LocalDate.parse(object.getString("date")), object.getString("entry"));
+    }
+}
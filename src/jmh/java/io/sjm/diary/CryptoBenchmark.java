@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and decryption of entry sized payloads, in both the current AES-GCM format and the
+ * old Base64 encoded Blowfish one. The key is derived once in setup, as it is in the application.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    int size;
+
+    private CryptoEngine engine;
+    private byte[] salt;
+    private byte[] plaintext;
+    private byte[] encoded;
+    private byte[] legacyEncoded;
+
+    @Setup public void setUp() throws GeneralSecurityException {
+        engine = new CryptoEngine(SyntheticDiary.PASSWORD);
+        salt = EntryFormat.newSalt();
+        plaintext = new SyntheticDiary(size).text(size).getBytes(StandardCharsets.UTF_8);
+        encoded = EntryFormat.encode(engine, salt, Settings.KDF_ITERATIONS, plaintext);
+        legacyEncoded = Base64.getEncoder().encode(engine.encrypt(plaintext));
+    }
+
+    @Benchmark public byte[] encrypt() throws GeneralSecurityException {
+        return EntryFormat.encode(engine, salt, Settings.KDF_ITERATIONS, plaintext);
+    }
+
+    @Benchmark public byte[] decrypt() throws GeneralSecurityException {
+        return EntryFormat.decode(engine, encoded);
+    }
+
+    @Benchmark public byte[] decryptLegacy() throws GeneralSecurityException {
+        return EntryFormat.decode(engine, legacyEncoded);
+    }
+}
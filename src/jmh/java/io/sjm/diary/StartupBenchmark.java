@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a diary and loading today's entry, which is what stands between launching the GUI and
+ * it being usable, apart from the window itself and the user typing the password. A cold open is
+ * the first thing each forked JVM does, so it includes class loading and JCE initialisation, as a
+ * launch does. A warm one repeats the open in a JVM that has done it before. Compare both with
+ * {@link Settings#STARTUP_TARGET}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+    private static final int DAYS = 60;
+
+    @Param({"false", "true"})
+    boolean warmUp;
+
+    private Path home;
+    private LocalDate today;
+
+    @Setup public void setUp() throws IOException, GeneralSecurityException {
+        home = SyntheticDiary.createTemporaryHome();
+        today = LocalDate.now();
+
+        new SyntheticDiary(DAYS).populate(new FileStorage(home, Settings.DIRFORMAT,
+            Settings.FILEFORMAT), today, DAYS, 2000);
+    }
+
+    @TearDown public void tearDown() throws IOException {
+        SyntheticDiary.delete(home);
+    }
+
+    @Benchmark @Fork(10) @Warmup(iterations = 0) @Measurement(iterations = 1)
+    public Entry cold() throws IOException, GeneralSecurityException {
+        return open();
+    }
+
+    @Benchmark @Fork(1) @Warmup(iterations = 5) @Measurement(iterations = 10)
+    public Entry warm() throws IOException, GeneralSecurityException {
+        return open();
+    }
+
+    private Entry open() throws IOException, GeneralSecurityException {
+        DiaryStore store = new DiaryStore(home);
+        if (warmUp)
+            Startup.warmUp(() -> store, today);
+
+        store.setPassword(SyntheticDiary.PASSWORD);
+
+        return store.entryExists(today) ? store.loadEntry(today) : null;
+    }
+}
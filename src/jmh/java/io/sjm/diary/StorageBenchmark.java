@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loading entries from a generated diary in a temporary directory, in each storage layout. A cold
+ * load reads and decrypts the entry, a warm one is answered from the cache, and a full scan reads
+ * and decrypts every entry the way the search index does when it's rebuilt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"files", "segments"})
+    String layout;
+
+    @Param({"1000"})
+    int days;
+
+    @Param({"2000"})
+    int entryLength;
+
+    private Path home;
+    private DiaryStore store;
+    private List<LocalDate> dates;
+    private LocalDate warm;
+    private int next;
+
+    @Setup public void setUp() throws IOException, GeneralSecurityException {
+        home = SyntheticDiary.createTemporaryHome();
+
+        Storage storage = layout.equals("segments") ? new SegmentStorage(home)
+            : new FileStorage(home, Settings.DIRFORMAT, Settings.FILEFORMAT);
+        dates = new SyntheticDiary(days).populate(storage, LocalDate.of(2015, 6, 21), days,
+            entryLength);
+        if (storage instanceof SegmentStorage)
+            ((SegmentStorage) storage).close();
+
+        store = new DiaryStore(home);
+        store.setPassword(SyntheticDiary.PASSWORD);
+
+        // Derive the key and fill the cache for the warm loads.
+        warm = dates.get(dates.size() - 1);
+        store.loadEntry(warm);
+    }
+
+    @TearDown public void tearDown() throws IOException {
+        store.close();
+        SyntheticDiary.delete(home);
+    }
+
+    @Benchmark public Entry coldLoad() throws IOException, GeneralSecurityException {
+        LocalDate date = dates.get(next++ % dates.size());
+        store.clearCache();
+
+        return store.loadEntry(date);
+    }
+
+    @Benchmark public Entry warmLoad() throws IOException, GeneralSecurityException {
+        return store.loadEntry(warm);
+    }
+
+    @Benchmark @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long fullScan() throws IOException, GeneralSecurityException {
+        CryptoEngine engine = new CryptoEngine(SyntheticDiary.PASSWORD);
+        Storage storage = store.getStorage();
+        AtomicLong characters = new AtomicLong();
+
+        storage.scan(storage.list().keySet(), (date, bytes) -> {
+            try {
+                Entry entry = EntryCodec.decode(EntryFormat.decode(engine, bytes));
+                characters.addAndGet(entry.getText().length());
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        });
+
+        return characters.get();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates diaries of made up entries for the benchmarks. Output depends only on the seed, so
+ * every run measures the same data.
+ */
+class SyntheticDiary {
+    static final String PASSWORD = "benchmark";
+
+    private static final String[] WORDS = {"the", "a", "and", "to", "of", "was", "in", "it",
+        "today", "morning", "walked", "coffee", "work", "rain", "friend", "dinner", "read",
+        "book", "tired", "city", "train", "meeting", "garden", "evening", "slept", "late",
+        "\u00e9t\u00e9", "caf\u00e9", "\"quoted\"", "back\\slash", "tab\there", "line\nbreak"};
+
+    private final Random random;
+
+    SyntheticDiary(final long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return roughly {@code length} characters of text made of common words, with occasional
+     * characters that need escaping in JSON
+     */
+    String text(final int length) {
+        StringBuilder text = new StringBuilder(length + 16);
+
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        text.setLength(length);
+
+        return text.toString();
+    }
+
+    /**
+     * Write an entry for each of the given number of days up to and including {@code last},
+     * encrypted with {@link #PASSWORD} in the current format.
+     *
+     * @return the dates written, oldest first
+     */
+    List<LocalDate> populate(final Storage storage, final LocalDate last, final int days,
+        final int averageLength) throws IOException, GeneralSecurityException {
+        CryptoEngine engine = new CryptoEngine(PASSWORD);
+        byte[] salt = EntryFormat.newSalt();
+        List<LocalDate> dates = new ArrayList<>();
+
+        for (LocalDate date = last.minusDays(days - 1); !date.isAfter(last);
+             date = date.plusDays(1)) {
+            int length = averageLength / 2 + random.nextInt(averageLength + 1);
+            byte[] plaintext = EntryCodec.encode(new Entry(date, text(length)));
+
+            storage.write(date, EntryFormat.encode(engine, salt, Settings.KDF_ITERATIONS,
+                plaintext));
+            dates.add(date);
+        }
+
+        return dates;
+    }
+
+    /**
+     * @return a new empty diary directory
+     */
+    static Path createTemporaryHome() throws IOException {
+        return Files.createTempDirectory("diary-benchmark");
+    }
+
+    static void delete(final Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(final Path file,
+                final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult postVisitDirectory(final Path dir,
+                final IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps point-in-time snapshots of the diary directory in a backup directory. Files are stored
+ * once each under the SHA-256 hash of their contents, so a snapshot only copies the files that
+ * are new or have changed, and a file that hasn't changed is recognised from its size and
+ * modification time without being read. Entries are copied as they are stored, still encrypted.
+ * <p>
+ * Some files, such as segments and history logs, are changed in place rather than replaced, so a
+ * file may change while it is being copied. Each file is hashed as it is copied, so a stored file
+ * always matches its hash, and its modification time is taken before it is read, so a change that
+ * lands during the copy is picked up by the next snapshot.
+ * <p>
+ * The backup directory holds {@code objects/ab/cdef...}, the stored files, and
+ * {@code snapshots/NAME}, a manifest per snapshot listing the hash, size, modification time and
+ * path of each file, one file per line.
+ */
+public class Backup {
+    private static final String OBJECTS = "objects";
+    private static final String SNAPSHOTS = "snapshots";
+    private static final DateTimeFormatter SNAPSHOT_NAME =
+        DateTimeFormatter.ofPattern("uuuuMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    private int files;
+    private int copied;
+    private long copiedBytes;
+
+    /**
+     * A file as recorded in a snapshot's manifest.
+     */
+    private static class Record {
+        final String hash;
+        final long size;
+        final long modified;
+        final String path;
+
+        Record(final String hash, final long size, final long modified, final String path) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.path = path;
+        }
+
+        static Record parse(final String line) throws IOException {
+            String[] fields = line.split("\t", 4);
+            if (fields.length != 4)
+                throw new IOException("Malformed manifest line: " + line);
+
+            return new Record(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                fields[3]);
+        }
+
+        @Override public String toString() {
+            return hash + "\t" + size + "\t" + modified + "\t" + path;
+        }
+    }
+
+    /**
+     * @param directory the backup directory, which is created if necessary
+     */
+    public Backup(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Take a snapshot of a diary directory, copying only the files that aren't in the backup
+     * already. Temporary files and the local server's access token are left out.
+     *
+     * @param root the diary directory
+     * @return the name of the new snapshot
+     * @throws IOException
+     */
+    public String create(final Path root) throws IOException {
+        files = 0;
+        copied = 0;
+        copiedBytes = 0;
+
+        List<String> snapshots = listSnapshots();
+        Map<String, Record> previous = snapshots.isEmpty() ? Collections.emptyMap() :
+            readManifest(snapshots.get(snapshots.size() - 1)).stream()
+                .collect(Collectors.toMap(r -> r.path, r -> r));
+
+        Path backup = directory.toAbsolutePath().normalize();
+        Path server = root.resolve(Settings.SERVERFILE);
+        List<Record> records = new ArrayList<>();
+        Set<Path> newDirectories = new HashSet<>();
+
+        try (Metrics.Timer timer = Metrics.start("backup", null)) {
+            // The walk hands over each file's attributes, so an unchanged file costs one stat.
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult preVisitDirectory(final Path dir,
+                    final BasicFileAttributes attributes) {
+                    return dir.toAbsolutePath().normalize().startsWith(backup) ?
+                        FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override public FileVisitResult visitFile(final Path path,
+                    final BasicFileAttributes attributes) throws IOException {
+                    if (!attributes.isRegularFile() || path.equals(server) ||
+                        path.getFileName().toString().endsWith(".tmp"))
+                        return FileVisitResult.CONTINUE;
+
+                    // The contents read by store() are at least as new as these attributes, so a
+                    // change is never missed.
+                    String name = relativeName(root, path);
+                    long modified = attributes.lastModifiedTime().toMillis();
+
+                    Record old = previous.get(name);
+                    if (old != null && old.size == attributes.size() && old.modified == modified)
+                        records.add(old);
+                    else
+                        records.add(store(path, name, modified, newDirectories));
+                    files++;
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            timer.bytes(copiedBytes);
+        }
+        records.sort(Comparator.comparing(r -> r.path));
+
+        for (Path newDirectory : newDirectories)
+            force(newDirectory);
+
+        String base = SNAPSHOT_NAME.format(Instant.now());
+        String snapshot = base;
+        for (int i = 2; Files.exists(getSnapshotPath(snapshot)); i++)
+            snapshot = base + "-" + i;
+
+        StringBuilder manifest = new StringBuilder();
+        for (Record record : records)
+            manifest.append(record).append('\n');
+        Utils.writeAtomically(getSnapshotPath(snapshot),
+            manifest.toString().getBytes(StandardCharsets.UTF_8));
+
+        return snapshot;
+    }
+
+    /**
+     * Copy a file into the backup, hashing it in the same pass, and keep the copy if its contents
+     * aren't there already.
+     */
+    private Record store(final Path path, final String name, final long modified,
+        final Set<Path> newDirectories) throws IOException {
+        Path objects = directory.resolve(OBJECTS);
+        Files.createDirectories(objects);
+        Path temp = Files.createTempFile(objects, "object", ".tmp");
+
+        try {
+            long size;
+            String hash;
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                size = in.size();
+                hash = copy(in, size, out);
+                out.force(true);
+            }
+
+            Path object = getObjectPath(hash);
+            if (!Files.exists(object)) {
+                Files.createDirectories(object.getParent());
+                Files.move(temp, object, StandardCopyOption.ATOMIC_MOVE);
+                newDirectories.add(object.getParent());
+                copied++;
+                copiedBytes += size;
+            }
+
+            return new Record(hash, size, modified, name);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Restore a snapshot into a directory, which must be empty or not exist yet. Each file is
+     * checked against its hash and given back its original modification time, so the search
+     * index still matches the restored entries.
+     *
+     * @param snapshot the name of the snapshot to restore
+     * @param root     the directory to restore it into
+     * @return the number of files restored
+     * @throws NoSuchFileException if there is no such snapshot
+     * @throws IOException         if the directory isn't empty, or a stored file is corrupt
+     */
+    public int restore(final String snapshot, final Path root) throws IOException {
+        List<Record> records = readManifest(snapshot);
+
+        if (Files.exists(root)) {
+            try (DirectoryStream<Path> contents = Files.newDirectoryStream(root)) {
+                if (contents.iterator().hasNext())
+                    throw new FileAlreadyExistsException(root.toString(), null,
+                        "Restore into an empty directory.");
+            }
+        }
+
+        try (Metrics.Timer timer = Metrics.start("restore", null)) {
+            long bytes = 0;
+            for (Record record : records) {
+                Path path = root.resolve(record.path).normalize();
+                if (!path.startsWith(root.normalize()))
+                    throw new IOException("Malformed manifest path: " + record.path);
+
+                try (FileChannel in = FileChannel.open(getObjectPath(record.hash),
+                    StandardOpenOption.READ)) {
+                    if (in.size() != record.size || !hash(in, record.size).equals(record.hash))
+                        throw new IOException("The backup of " + record.path + " is corrupt.");
+
+                    Files.createDirectories(path.getParent());
+                    transfer(in, record.size, path);
+                }
+                Files.setLastModifiedTime(path, FileTime.fromMillis(record.modified));
+                bytes += record.size;
+            }
+            timer.bytes(bytes);
+        }
+
+        return records.size();
+    }
+
+    /**
+     * @return the names of the snapshots in the backup, oldest first
+     * @throws IOException
+     */
+    public List<String> listSnapshots() throws IOException {
+        List<String> names = new ArrayList<>();
+        Path snapshots = directory.resolve(SNAPSHOTS);
+
+        if (!Files.isDirectory(snapshots))
+            return names;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(snapshots)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (!name.endsWith(".tmp"))
+                    names.add(name);
+            }
+        }
+        Collections.sort(names);
+
+        return names;
+    }
+
+    private List<Record> readManifest(final String snapshot) throws IOException {
+        List<Record> records = new ArrayList<>();
+
+        try (BufferedReader in = Files.newBufferedReader(getSnapshotPath(snapshot),
+            StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty())
+                    records.add(Record.parse(line));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * @return the number of files in the last snapshot taken
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the number of files the last snapshot had to copy
+     */
+    public int getCopied() {
+        return copied;
+    }
+
+    /**
+     * @return the number of bytes the last snapshot had to copy
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    private Path getObjectPath(final String hash) {
+        return directory.resolve(OBJECTS).resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private Path getSnapshotPath(final String snapshot) {
+        if (snapshot.contains("/") || snapshot.contains("\\") || snapshot.startsWith("."))
+            throw new IllegalArgumentException("Unknown snapshot " + snapshot + ".");
+
+        return directory.resolve(SNAPSHOTS).resolve(snapshot);
+    }
+
+    /**
+     * @return the path of a file relative to the diary directory, always separated by slashes
+     */
+    private static String relativeName(final Path root, final Path path) {
+        String name = root.relativize(path).toString();
+
+        return File.separatorChar == '/' ? name : name.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return the hex SHA-256 hash of the first {@code size} bytes of a channel
+     */
+    private static String hash(final FileChannel channel, final long size) throws IOException {
+        return copy(channel, size, null);
+    }
+
+    /**
+     * Read the first {@code size} bytes of a channel, hashing them and writing them to another
+     * channel as they are read, so the hash is of exactly the bytes written.
+     *
+     * @param out the channel to copy to, or null to only hash
+     * @return the hex SHA-256 hash of the bytes read
+     */
+    private static String copy(final FileChannel in, final long size, final FileChannel out)
+        throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime provides SHA-256.
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            if (size - position < buffer.capacity())
+                buffer.limit((int) (size - position));
+
+            int read = in.read(buffer, position);
+            if (read < 0)
+                throw new IOException("The file was truncated while it was being read.");
+            buffer.flip();
+            digest.update(buffer.duplicate());
+            if (out != null) {
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+            }
+            position += read;
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+
+        return hex.toString();
+    }
+
+    /**
+     * Copy the first {@code size} bytes of a channel to a new file, letting the operating system
+     * move the data directly where it can. The copy is forced to disk and then renamed into place,
+     * so a file that exists is always complete.
+     */
+    private static void transfer(final FileChannel in, final long size, final Path path)
+        throws IOException {
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred == 0 && in.size() <= position)
+                        throw new IOException("The file was truncated while it was being read.");
+                    position += transferred;
+                }
+                out.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Make renames into a directory durable, as far as the platform allows.
+     */
+    private static void force(final Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Ignored.
+        }
+    }
+}
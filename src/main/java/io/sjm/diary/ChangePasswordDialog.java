@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.PasswordField;
+import javafx.scene.layout.VBox;
+import javafx.util.Pair;
+
+/**
+ * Asks for the current password and a new one, returning them as a pair.
+ */
+public class ChangePasswordDialog extends Dialog<Pair<String, String>> {
+    public ChangePasswordDialog(final String message) {
+        setTitle("Change Password");
+        setHeaderText(message);
+
+        getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+
+        PasswordField oldField = new PasswordField();
+        oldField.setPromptText("Current password");
+        PasswordField newField = new PasswordField();
+        newField.setPromptText("New password");
+        PasswordField confirmField = new PasswordField();
+        confirmField.setPromptText("Confirm new password");
+
+        VBox vBox = new VBox(10, oldField, newField, confirmField);
+        vBox.setPadding(new Insets(20));
+
+        getDialogPane().setContent(vBox);
+
+        // Only allow OK once the new password has been entered the same way twice.
+        getDialogPane().lookupButton(ButtonType.OK).disableProperty().bind(
+            oldField.textProperty().isEmpty()
+                .or(newField.textProperty().isEmpty())
+                .or(newField.textProperty().isNotEqualTo(confirmField.textProperty())));
+
+        Platform.runLater(() -> oldField.requestFocus());
+
+        setResultConverter(dialogButton -> {
+            if (dialogButton == ButtonType.OK)
+                return new Pair<>(oldField.getText(), newField.getText());
+            return null;
+        });
+    }
+}
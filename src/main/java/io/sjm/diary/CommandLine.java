@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Runs commands against the diary without opening a window, so it can be used from scripts and
+ * scheduled jobs.
+ * <p>
+ * Usage:
+ * <pre>
+ * diary export [--from DATE] [--to DATE] [--format jsonl|markdown|txt] [--output FILE]
+ * diary import --input DIR|FILE|- [--policy skip|overwrite|append]
+ * diary serve [--port PORT]
+ * diary backup --output DIR
+ * diary restore --input DIR [--snapshot NAME] --output DIR
+ * </pre>
+ * An import reads dated text and Markdown files from a directory, or JSON lines from a file or
+ * standard input. Serving runs a {@link DiaryServer} until the process is stopped. A backup adds a
+ * {@link Backup} snapshot of the diary directory to the given directory, and a restore copies the
+ * latest or the named snapshot into an empty directory.
+ * <p>
+ * Commands that decrypt entries take the password from the environment variable named by
+ * {@link Settings#PASSWORD_ENV} if it is set, and read it from standard input otherwise. Backups
+ * copy entries still encrypted, so don't need it.
+ */
+public class CommandLine {
+    private static final String USAGE = "Usage: diary export [--from DATE] [--to DATE] " +
+        "[--format jsonl|markdown|txt] [--output FILE]\n" +
+        "       diary import --input DIR|FILE|- [--policy skip|overwrite|append]\n" +
+        "       diary serve [--port PORT]\n" +
+        "       diary backup --output DIR\n" +
+        "       diary restore --input DIR [--snapshot NAME] --output DIR";
+
+    private static BufferedReader stdin;
+
+    /**
+     * @return whether the arguments name a command, rather than being meant for the GUI
+     */
+    public static boolean isCommand(final String[] args) {
+        return args.length > 0 && (args[0].equals("export") || args[0].equals("import") ||
+            args[0].equals("serve") || args[0].equals("backup") || args[0].equals("restore"));
+    }
+
+    /**
+     * Run the command named by the first argument.
+     *
+     * @return the exit status
+     */
+    public static int run(final String[] args) {
+        try {
+            Map<String, String> options = parseOptions(args);
+
+            switch (args[0]) {
+                case "backup":
+                    return backup(options);
+                case "restore":
+                    return restore(options);
+            }
+
+            Utils.setPassword(readPassword());
+
+            switch (args[0]) {
+                case "export":
+                    return export(options);
+                case "import":
+                    return importEntries(options);
+                default:
+                    return serve(options);
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (GeneralSecurityException e) {
+            System.err.println("Couldn't decrypt the diary. Is the password right?");
+            return 1;
+        } catch (JSONException e) {
+            System.err.println("Couldn't read an entry: " + e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            System.err.println(e);
+            return 1;
+        }
+    }
+
+    private static int export(final Map<String, String> options)
+        throws IOException, GeneralSecurityException {
+        LocalDate from = LocalDate.parse(options.getOrDefault("from", LocalDate.MIN.toString()));
+        LocalDate to = LocalDate.parse(options.getOrDefault("to", LocalDate.MAX.toString()));
+        Export.Format format = Export.Format.parse(options.getOrDefault("format", "jsonl"));
+
+        List<LocalDate> dates = Utils.listEntries().keySet().stream()
+            .filter(date -> !date.isBefore(from) && !date.isAfter(to))
+            .collect(Collectors.toList());
+
+        long start = System.nanoTime();
+        int count;
+
+        String output = options.get("output");
+        try (OutputStream out = new BufferedOutputStream(output == null ? System.out :
+            Files.newOutputStream(Paths.get(output)), 64 * 1024)) {
+            count = new Export(format, Runtime.getRuntime().availableProcessors())
+                .write(dates, out);
+        }
+
+        System.err.printf("Exported %d entries in %.1f s.%n", count,
+            (System.nanoTime() - start) / 1e9);
+
+        return 0;
+    }
+
+    private static int importEntries(final Map<String, String> options)
+        throws IOException, GeneralSecurityException {
+        String input = options.get("input");
+        if (input == null)
+            throw new IllegalArgumentException("No input was given.");
+        Import.Policy policy = Import.Policy.parse(options.getOrDefault("policy", "skip"));
+
+        checkPassword();
+
+        SortedMap<LocalDate, Callable<String>> sources;
+        if (input.equals("-")) {
+            sources = Import.readJSONLines(stdin());
+        } else if (Files.isDirectory(Paths.get(input))) {
+            sources = Import.findFiles(Paths.get(input));
+        } else {
+            try (BufferedReader in = Files.newBufferedReader(Paths.get(input),
+                StandardCharsets.UTF_8)) {
+                sources = Import.readJSONLines(in);
+            }
+        }
+
+        long start = System.nanoTime();
+        AtomicLong lastReport = new AtomicLong(start);
+        Import importer = new Import(policy, Runtime.getRuntime().availableProcessors());
+
+        importer.run(sources, (done, total) -> {
+            long now = System.nanoTime();
+            long last = lastReport.get();
+            if (now - last >= 1_000_000_000L && lastReport.compareAndSet(last, now))
+                System.err.printf("%d of %d dates, %.0f entries/s%n", done, total,
+                    done / ((now - start) / 1e9));
+        });
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int written = importer.getImported() + importer.getAppended();
+        System.err.printf("Imported %d entries, appended to %d and skipped %d in %.1f s " +
+                "(%.0f entries/s).%n", importer.getImported(), importer.getAppended(),
+            importer.getSkipped(), seconds, written / seconds);
+
+        return 0;
+    }
+
+    private static int serve(final Map<String, String> options)
+        throws IOException, GeneralSecurityException {
+        int port = Integer.parseInt(options.getOrDefault("port",
+            String.valueOf(Settings.SERVER_PORT)));
+
+        checkPassword();
+
+        DiaryServer server = new DiaryServer(Utils.getStore(), port);
+        server.start();
+        // Don't serve stale copies of entries synced from elsewhere.
+        Utils.watch();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            Utils.flush();
+            Utils.clearCache();
+        }));
+
+        System.err.println("Serving the diary on port " + server.getPort() + ". The address " +
+            "and access token are in " + server.getServerFilePath() + ".");
+
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return 0;
+    }
+
+    private static int backup(final Map<String, String> options) throws IOException {
+        String output = options.get("output");
+        if (output == null)
+            throw new IllegalArgumentException("No backup directory was given.");
+
+        long start = System.nanoTime();
+        Backup backup = new Backup(Paths.get(output));
+        String snapshot = backup.create(Paths.get(Settings.homeDir));
+
+        System.err.printf("Snapshot %s: copied %d of %d files (%d bytes) in %.0f ms.%n", snapshot,
+            backup.getCopied(), backup.getFiles(), backup.getCopiedBytes(),
+            (System.nanoTime() - start) / 1e6);
+
+        return 0;
+    }
+
+    private static int restore(final Map<String, String> options) throws IOException {
+        String input = options.get("input");
+        String output = options.get("output");
+        if (input == null || output == null)
+            throw new IllegalArgumentException("Both a backup and a target directory are needed.");
+
+        Backup backup = new Backup(Paths.get(input));
+        List<String> snapshots = backup.listSnapshots();
+        String snapshot = options.get("snapshot");
+        if (snapshot == null) {
+            if (snapshots.isEmpty())
+                throw new IllegalArgumentException("There are no snapshots in " + input + ".");
+            snapshot = snapshots.get(snapshots.size() - 1);
+        } else if (!snapshots.contains(snapshot)) {
+            throw new IllegalArgumentException("Unknown snapshot " + snapshot + ". The " +
+                "snapshots are: " + String.join(", ", snapshots));
+        }
+
+        int count = backup.restore(snapshot, Paths.get(output));
+        System.err.println("Restored " + count + " files from snapshot " + snapshot + ".");
+
+        return 0;
+    }
+
+    /**
+     * Make sure the password is right before adding entries the rest can't be read with, or
+     * handing out entries that don't decrypt.
+     *
+     * @throws GeneralSecurityException if the password is wrong
+     */
+    private static void checkPassword() throws IOException, GeneralSecurityException {
+        SortedMap<LocalDate, Long> existing = Utils.listEntries();
+
+        if (!existing.isEmpty())
+            Utils.readEntry(existing.lastKey());
+    }
+
+    /**
+     * Collect options of the form {@code --name value} following the command.
+     */
+    private static Map<String, String> parseOptions(final String[] args) {
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 1; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length)
+                throw new IllegalArgumentException("Unexpected argument " + args[i] + ".");
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        return options;
+    }
+
+    /**
+     * @return the one reader of standard input, so that lines it has buffered after the password
+     * aren't lost to an import reading the rest
+     */
+    private static synchronized BufferedReader stdin() {
+        if (stdin == null)
+            stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        return stdin;
+    }
+
+    private static String readPassword() throws IOException {
+        String password = System.getenv(Settings.PASSWORD_ENV);
+
+        if (password == null) {
+            Console console = System.console();
+            if (console != null) {
+                char[] chars = console.readPassword("Password: ");
+                password = chars == null ? null : new String(chars);
+            } else {
+                password = stdin().readLine();
+            }
+        }
+
+        if (password == null || password.isEmpty())
+            throw new IllegalArgumentException("No password was given.");
+
+        return password;
+    }
+}
@@ -16,9 +16,7 @@
 
 package io.sjm.diary;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.Base64;
 
@@ -26,8 +24,7 @@ import java.util.Base64;
  * A simple helper class for encryption and decryption.
  */
 public class Crypto {
-    private final static String CIPHER = "Blowfish";
-    private final static String CHAR_ENCODING = "UTF-8";
+    private static volatile CryptoEngine engine;
 
     /**
      * Encrypt the given string using Blowfish and returns the Base64 encoded result.
@@ -39,15 +36,13 @@ public class Crypto {
      */
     public static String encryptString(String plainText, String encryptionKey)
         throws GeneralSecurityException {
-        byte[] encrypted;
+        try (Metrics.Timer timer = Metrics.start("legacy.encrypt", null)) {
+            byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+            byte[] encrypted = engine(encryptionKey).encrypt(plainBytes);
+            timer.bytes(plainBytes.length);
 
-        SecretKeySpec secretKeySpec = new SecretKeySpec(encryptionKey.getBytes(), CIPHER);
-        Cipher cipherInstance = Cipher.getInstance(CIPHER);
-
-        cipherInstance.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-        encrypted = cipherInstance.doFinal(plainText.getBytes());
-
-        return Base64.getEncoder().encodeToString(encrypted);
+            return Base64.getEncoder().encodeToString(encrypted);
+        }
     }
 
     /**
@@ -57,16 +52,33 @@ public class Crypto {
      * @param encryptionKey the decryption key
      * @return the Base64 decoded result of decrypting the ciphertext
      * @throws GeneralSecurityException
-     * @throws UnsupportedEncodingException
      */
     public static String decryptString(String cipherText, String encryptionKey)
-        throws GeneralSecurityException, UnsupportedEncodingException {
-        Cipher cipherInstance = Cipher.getInstance(CIPHER);
-        SecretKeySpec key = new SecretKeySpec(encryptionKey.getBytes(CHAR_ENCODING), CIPHER);
+        throws GeneralSecurityException {
+        try (Metrics.Timer timer = Metrics.start("legacy.decrypt", null)) {
+            byte[] decrypted =
+                engine(encryptionKey).decrypt(Base64.getDecoder().decode(cipherText));
+            timer.bytes(decrypted.length);
+
+            return new String(decrypted, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Get an engine for the given key, reusing the previous one if the key hasn't changed.
+     *
+     * @param encryptionKey the encryption key
+     * @return an engine that encrypts and decrypts with the key
+     * @throws GeneralSecurityException
+     */
+    public static CryptoEngine engine(String encryptionKey) throws GeneralSecurityException {
+        CryptoEngine current = engine;
 
-        cipherInstance.init(Cipher.DECRYPT_MODE, key);
+        if (current == null || !current.hasPassword(encryptionKey)) {
+            current = new CryptoEngine(encryptionKey);
+            engine = current;
+        }
 
-        return new String(cipherInstance.doFinal(Base64.getDecoder().decode(cipherText)),
-            CHAR_ENCODING);
+        return current;
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encrypts and decrypts with a single password. The Blowfish key is prepared once, AES keys are
+ * derived once per salt, and each thread keeps its own {@link Cipher} instances, so repeated calls
+ * skip the provider lookup and the key schedule. Instances are safe to share between threads.
+ */
+public class CryptoEngine {
+    private final static String CIPHER = "Blowfish";
+    private final static String AES_CIPHER = "AES/GCM/NoPadding";
+    private final static String KDF = "PBKDF2WithHmacSHA256";
+    private final static int AES_KEY_BITS = 256;
+    private final static int GCM_TAG_BITS = 128;
+
+    private final char[] password;
+    private final byte[] keyDigest;
+    private final SecretKeySpec key;
+    private final ConcurrentMap<String, SecretKey> aesKeys = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Cipher> encryptors = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decryptors = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> aesCiphers = new ThreadLocal<>();
+
+    public CryptoEngine(final String password) throws GeneralSecurityException {
+        this.password = password.toCharArray();
+
+        byte[] keyBytes = password.getBytes(StandardCharsets.UTF_8);
+
+        key = new SecretKeySpec(keyBytes, CIPHER);
+        keyDigest = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+
+    /**
+     * @return whether this engine was created from the given password
+     */
+    public boolean hasPassword(final String password) throws GeneralSecurityException {
+        byte[] keyBytes = password.getBytes(StandardCharsets.UTF_8);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        Arrays.fill(keyBytes, (byte) 0);
+
+        return MessageDigest.isEqual(digest, keyDigest);
+    }
+
+    public byte[] encrypt(final byte[] plaintext) throws GeneralSecurityException {
+        return doFinal(encryptors, Cipher.ENCRYPT_MODE, plaintext);
+    }
+
+    public byte[] decrypt(final byte[] ciphertext) throws GeneralSecurityException {
+        return doFinal(decryptors, Cipher.DECRYPT_MODE, ciphertext);
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer.
+     *
+     * @param plaintext the bytes to encrypt, which are consumed
+     * @return a buffer holding the ciphertext, ready to be read
+     */
+    public ByteBuffer encrypt(final ByteBuffer plaintext) throws GeneralSecurityException {
+        return doFinal(encryptors, Cipher.ENCRYPT_MODE, plaintext);
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer.
+     *
+     * @param ciphertext the bytes to decrypt, which are consumed
+     * @return a buffer holding the plaintext, ready to be read
+     */
+    public ByteBuffer decrypt(final ByteBuffer ciphertext) throws GeneralSecurityException {
+        return doFinal(decryptors, Cipher.DECRYPT_MODE, ciphertext);
+    }
+
+    /**
+     * Get this thread's AES-GCM cipher, initialised with the key derived from the given salt and
+     * iteration count. Keys are derived only once per engine for each distinct salt.
+     *
+     * @param mode       {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param salt       the key derivation salt
+     * @param iterations the key derivation iteration count
+     * @param nonce      the GCM nonce, which must never be reused for encryption with the same key
+     * @return the initialised cipher
+     */
+    Cipher aesCipher(final int mode, final byte[] salt, final int iterations, final byte[] nonce)
+        throws GeneralSecurityException {
+        Cipher cipher = aesCiphers.get();
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(AES_CIPHER);
+            aesCiphers.set(cipher);
+        }
+        cipher.init(mode, aesKey(salt, iterations), new GCMParameterSpec(GCM_TAG_BITS, nonce));
+
+        return cipher;
+    }
+
+    private SecretKey aesKey(final byte[] salt, final int iterations)
+        throws GeneralSecurityException {
+        String id = Base64.getEncoder().encodeToString(salt) + ":" + iterations;
+
+        try {
+            return aesKeys.computeIfAbsent(id, k -> {
+                PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, AES_KEY_BITS);
+                try {
+                    byte[] derived = SecretKeyFactory.getInstance(KDF).generateSecret(spec)
+                        .getEncoded();
+                    SecretKey aesKey = new SecretKeySpec(derived, "AES");
+                    Arrays.fill(derived, (byte) 0);
+                    return aesKey;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    spec.clearPassword();
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) e.getCause();
+            throw e;
+        }
+    }
+
+    private byte[] doFinal(final ThreadLocal<Cipher> ciphers, final int mode, final byte[] input)
+        throws GeneralSecurityException {
+        Cipher cipher = cipher(ciphers, mode);
+
+        try {
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            // The cipher's state is undefined after a failure, so start afresh next time.
+            ciphers.remove();
+            throw e;
+        }
+    }
+
+    private ByteBuffer doFinal(final ThreadLocal<Cipher> ciphers, final int mode,
+        final ByteBuffer input) throws GeneralSecurityException {
+        Cipher cipher = cipher(ciphers, mode);
+        ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(input.remaining()));
+
+        try {
+            cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            ciphers.remove();
+            throw e;
+        }
+        output.flip();
+
+        return output;
+    }
+
+    /**
+     * @return this thread's cipher for the given mode, initialised with the key on first use
+     */
+    private Cipher cipher(final ThreadLocal<Cipher> ciphers, final int mode)
+        throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER);
+            cipher.init(mode, key);
+            ciphers.set(cipher);
+        }
+
+        return cipher;
+    }
+}
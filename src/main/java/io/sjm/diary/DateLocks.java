@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.time.LocalDate;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read-write locks shared out among dates, so that writers to different dates
+ * rarely wait for each other and there are no per-date locks to create or clean up. Consecutive
+ * dates always get different locks.
+ */
+public class DateLocks {
+    private final ReadWriteLock[] locks;
+
+    /**
+     * @param stripes the number of locks to share out
+     */
+    public DateLocks(final int stripes) {
+        locks = new ReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++)
+            locks[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * @return the lock guarding the given date
+     */
+    public ReadWriteLock get(final LocalDate date) {
+        return locks[(int) Math.floorMod(date.toEpochDay(), (long) locks.length)];
+    }
+}
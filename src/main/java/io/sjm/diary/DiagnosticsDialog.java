@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javafx.geometry.Insets;
+import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.stage.FileChooser;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shows the timings and counters collected by {@link Metrics}, and saves them to a file.
+ */
+public class DiagnosticsDialog extends Dialog<Void> {
+    public DiagnosticsDialog() {
+        setTitle("Diagnostics");
+        setHeaderText("Timings since the diary was opened. For a flight recording of every load " +
+            "and save,\nstart the diary with -XX:StartFlightRecording.");
+        setResizable(true);
+
+        TextArea textArea = new TextArea(Metrics.report());
+        textArea.setEditable(false);
+        textArea.setFont(Font.font("Monospaced", 12));
+        textArea.setPrefColumnCount(80);
+        textArea.setPrefRowCount(24);
+
+        Button refreshButton = new Button("Refresh");
+        refreshButton.setOnAction(e -> textArea.setText(Metrics.report()));
+        Button saveButton = new Button("Save...");
+        saveButton.setOnAction(e -> save());
+
+        VBox vBox = new VBox(10, textArea, new HBox(10, refreshButton, saveButton));
+        vBox.setPadding(new Insets(20));
+        VBox.setVgrow(textArea, Priority.ALWAYS);
+
+        getDialogPane().setContent(vBox);
+        getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+    }
+
+    private void save() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save Diagnostics");
+        fileChooser.setInitialFileName("diary-metrics.txt");
+
+        File file = fileChooser.showSaveDialog(getDialogPane().getScene().getWindow());
+        if (file == null)
+            return;
+
+        try {
+            Metrics.dump(file.toPath());
+        } catch (IOException e) {
+            new ExceptionDialog(e).showAndWait();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.stage.Stage;
+
+import java.time.LocalDate;
+
+/**
+ * Shows the main window as soon as it is built, while the first entry is prepared in the
+ * background, and only then asks for the password or loads the entry.
+ */
+public class DiaryApplication extends Application {
+    @Override public void start(Stage primaryStage) throws Exception {
+        Startup.warmUp(Utils::getStore, LocalDate.now());
+
+        GUI gui = new GUI();
+        gui.setOnShown(e -> {
+            Startup.shown();
+            // Let the window paint before anything that might block or open a dialog.
+            Platform.runLater(gui::open);
+        });
+        gui.show();
+    }
+}
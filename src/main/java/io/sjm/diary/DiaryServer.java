@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONStringer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the unlocked diary over HTTP on the loopback interface, so several local tools can share
+ * one derived key and one cache of decrypted entries. Every request must carry the token written
+ * to {@link Settings#SERVERFILE}, which only the owner of the diary can read, as
+ * {@code Authorization: Bearer <token>}.
+ * <pre>
+ * GET /entries[?from=DATE&amp;to=DATE]  {"entries":[{"date":...,"modified":...},...]}
+ * GET /entries/DATE                   {"date":...,"entry":...}
+ * PUT /entries/DATE                   {"date":...,"entry":...}
+ * GET /search?q=WORDS[&amp;limit=N]      {"dates":[...]}
+ * </pre>
+ * Requests run on a virtual thread each where the Java runtime has them, and on a cached thread
+ * pool otherwise. The {@link DiaryStore} serializes writes to the same date.
+ */
+public class DiaryServer {
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = newExecutor();
+    private final DiaryStore store;
+    private final String token;
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * An error to report to the client with the given status.
+     */
+    private static class HttpException extends RuntimeException {
+        final int status;
+
+        HttpException(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * @param store the unlocked diary to serve
+     * @param port  the port to listen on, or 0 for any free port
+     * @throws IOException
+     */
+    public DiaryServer(final DiaryStore store, final int port) throws IOException {
+        this.store = store;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+            0);
+        server.setExecutor(executor);
+        server.createContext("/entries", handler("entries", this::entries));
+        server.createContext("/search", handler("search", this::search));
+
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        token = hex.toString();
+    }
+
+    /**
+     * Start serving requests and write the server's address and token where clients can find
+     * them. The file is created readable by its owner only.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        server.start();
+
+        String contents = "http://" + server.getAddress().getHostString() + ":" + getPort() +
+            "/\n" + token + "\n";
+        Utils.writeAtomically(getServerFilePath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stop serving requests, waiting briefly for those under way, and remove the server file.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+
+        try {
+            Files.deleteIfExists(getServerFilePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    Path getServerFilePath() {
+        return store.getRoot().resolve(Settings.SERVERFILE);
+    }
+
+    private void entries(final HttpExchange exchange)
+        throws IOException, GeneralSecurityException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+
+        if (path.equals("/entries") || path.equals("/entries/")) {
+            if (!method.equals("GET"))
+                throw new HttpException(405, "Use GET to list entries.");
+
+            Map<String, String> query = parseQuery(exchange);
+            LocalDate from = LocalDate.parse(query.getOrDefault("from", "0000-01-01"));
+            LocalDate to = LocalDate.parse(query.getOrDefault("to", "9999-12-31"));
+
+            JSONStringer json = new JSONStringer();
+            json.object().key("entries").array();
+            for (Map.Entry<LocalDate, Long> e : store.listEntries().entrySet()) {
+                if (!e.getKey().isBefore(from) && !e.getKey().isAfter(to))
+                    json.object().key("date").value(e.getKey().toString())
+                        .key("modified").value(e.getValue()).endObject();
+            }
+            json.endArray().endObject();
+
+            send(exchange, 200, json.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        LocalDate date = LocalDate.parse(path.substring("/entries/".length()));
+
+        if (method.equals("GET")) {
+            if (!store.entryExists(date))
+                throw new HttpException(404, "There is no entry for " + date + ".");
+
+            send(exchange, 200, EntryCodec.encode(store.loadEntry(date)));
+        } else if (method.equals("PUT")) {
+            Entry entry = EntryCodec.decode(readBody(exchange));
+            if (!entry.getDate().equals(date))
+                throw new HttpException(400, "The entry is for " + entry.getDate() + ", not " +
+                    date + ".");
+
+            store.saveEntry(entry);
+
+            send(exchange, 204, new byte[0]);
+        } else {
+            throw new HttpException(405, "Use GET or PUT for an entry.");
+        }
+    }
+
+    private void search(final HttpExchange exchange) throws IOException, GeneralSecurityException {
+        if (!exchange.getRequestMethod().equals("GET"))
+            throw new HttpException(405, "Use GET to search.");
+
+        Map<String, String> query = parseQuery(exchange);
+        String words = query.get("q");
+        if (words == null)
+            throw new HttpException(400, "No search query was given.");
+        int limit = Integer.parseInt(query.getOrDefault("limit", "20"));
+
+        JSONStringer json = new JSONStringer();
+        json.object().key("dates").array();
+        for (LocalDate date : store.getSearchIndex().search(words, limit))
+            json.value(date.toString());
+        json.endArray().endObject();
+
+        send(exchange, 200, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Wrap a handler with authentication, timing and the translation of errors into responses.
+     */
+    private HttpHandler handler(final String name, final Handler handler) {
+        return exchange -> {
+            try (Metrics.Timer timer = Metrics.start("server." + name, null)) {
+                if (!isAuthorized(exchange))
+                    throw new HttpException(401, "A valid bearer token is required.");
+
+                handler.handle(exchange);
+            } catch (HttpException e) {
+                sendError(exchange, e.status, e.getMessage());
+            } catch (IllegalArgumentException | DateTimeParseException | JSONException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (NoSuchFileException e) {
+                sendError(exchange, 404, "Not found.");
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, e.toString());
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private boolean isAuthorized(final HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer "))
+            return false;
+
+        // Compare in constant time, so the token can't be guessed a character at a time.
+        return MessageDigest.isEqual(header.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+            token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> parseQuery(final HttpExchange exchange)
+        throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0)
+                    query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+
+        return query;
+    }
+
+    private static byte[] readBody(final HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+                if (body.size() > MAX_BODY)
+                    throw new HttpException(413, "The entry is too large.");
+            }
+        }
+
+        return body.toByteArray();
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final byte[] body)
+        throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static void sendError(final HttpExchange exchange, final int status,
+        final String message) {
+        try {
+            send(exchange, status, new JSONStringer().object().key("error").value(message)
+                .endObject().toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The client has gone away.
+        }
+    }
+
+    /**
+     * Use a virtual thread per request if the runtime supports them. They are looked up
+     * reflectively so the diary still builds and runs on older runtimes.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "diary-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
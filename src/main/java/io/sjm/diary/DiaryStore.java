@@ -0,0 +1,910 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * An open diary: its directory and storage, the key it is encrypted with, and the caches,
+ * indexes and statistics built from it. Instances are safe to share between threads. Entries are
+ * read concurrently, while writes to an entry are serialized with reads and writes of the same
+ * entry, so the cache never holds an entry older than the one on disk.
+ * <p>
+ * Several diaries may be open at once. {@link Utils} delegates to one opened on
+ * {@link Settings#homeDir}.
+ */
+public class DiaryStore {
+    private static final ScheduledExecutorService background =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "diary-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final Path root;
+    private final Storage storage;
+    private final EntryIndex index;
+    private final EntryCache cache = new EntryCache(Settings.CACHE_ENTRIES, Settings.CACHE_BYTES);
+    private final DateLocks locks = new DateLocks(64);
+    private final History history;
+
+    private volatile CryptoEngine engine;
+    private byte[] salt;
+
+    // Held to write anything encrypted, and held exclusively while the password is changed.
+    private final ReadWriteLock keyLock = new ReentrantReadWriteLock();
+
+    // When the copy of each entry that was read or written was last modified, so that a watcher
+    // can tell whether the entry on disk is still that copy.
+    private final Map<LocalDate, Long> loaded = new ConcurrentHashMap<>();
+    private DiaryWatcher watcher;
+
+    private final Object searchIndexLock = new Object();
+    private volatile SearchIndex searchIndex;
+    private final DelayedWrite searchIndexWrite =
+        new DelayedWrite(() -> writeSidecar(getSearchIndexPath(), searchIndex.toBytes()));
+
+    private final Object statisticsLock = new Object();
+    private volatile Statistics statistics;
+    private final DelayedWrite statisticsWrite =
+        new DelayedWrite(() -> writeSidecar(getStatisticsPath(), statistics.toBytes()));
+
+    /**
+     * Open the diary in the given directory. Nothing can be read or written until a password has
+     * been set.
+     *
+     * @param root the diary directory
+     */
+    public DiaryStore(final Path root) {
+        this.root = root;
+        storage = createStorage(root);
+        history = new History(root.resolve(Settings.HISTORYDIR));
+        index = new EntryIndex(month -> {
+            try {
+                return storage.scanMonth(month);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Use a segment file per year if the diary has been converted to that layout, and a file per
+     * day otherwise.
+     *
+     * @param root the diary directory
+     * @return the storage for the diary
+     */
+    static Storage createStorage(final Path root) {
+        if (SegmentStorage.isPresent(root))
+            return new SegmentStorage(root);
+
+        return new FileStorage(root, Settings.DIRFORMAT, Settings.FILEFORMAT);
+    }
+
+    /**
+     * @return the diary directory
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the storage holding the diary's entries
+     */
+    Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return the revision history of the diary's entries
+     */
+    History getHistory() {
+        return history;
+    }
+
+    /**
+     * Set the password used to encrypt and decrypt entries. Entries decrypted with a different
+     * password are wiped from the cache.
+     *
+     * @param password the password
+     */
+    public void setPassword(final String password) {
+        if (hasPassword(password))
+            return;
+
+        try {
+            engine = new CryptoEngine(password);
+        } catch (GeneralSecurityException e) {
+            // Every Java runtime provides SHA-256.
+            throw new IllegalStateException(e);
+        }
+        cache.clear();
+        history.clear();
+    }
+
+    /**
+     * @return whether a password has been set
+     */
+    public boolean isUnlocked() {
+        return engine != null;
+    }
+
+    /**
+     * @return whether the given password is the one that has been set
+     */
+    public boolean hasPassword(final String password) {
+        CryptoEngine current = engine;
+
+        try {
+            return current != null && current.hasPassword(password);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CryptoEngine engine() {
+        CryptoEngine current = engine;
+
+        if (current == null)
+            throw new IllegalStateException("No password has been set for " + root + ".");
+
+        return current;
+    }
+
+    /**
+     * Read a diary entry from storage, or from the cache if it has been read or saved recently.
+     *
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public Entry loadEntry(final LocalDate date) throws IOException, GeneralSecurityException {
+        try (Metrics.Timer timer = Metrics.start("load", date)) {
+            Entry cached = cache.get(date);
+            if (cached != null) {
+                Metrics.counter("cache.hit").increment();
+                return cached;
+            }
+            Metrics.counter("cache.miss").increment();
+
+            // Keep a save from landing between reading the entry and caching it.
+            Lock lock = locks.get(date).readLock();
+            lock.lock();
+            try {
+                // Taken before the read, so a change that lands in between is seen as a change.
+                long modified = modified(date);
+                Entry entry = readEntry(date);
+                cache.putIfAbsent(entry);
+                if (modified >= 0)
+                    loaded.put(date, modified);
+
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read and decrypt a diary entry without consulting or filling the cache, for bulk operations
+     * that would otherwise flush it.
+     */
+    Entry readEntry(final LocalDate date) throws IOException, GeneralSecurityException {
+        CryptoEngine engine = engine();
+
+        byte[] encoded;
+        try (Metrics.Timer timer = Metrics.start("read", date)) {
+            encoded = storage.read(date);
+            timer.bytes(encoded.length);
+        }
+
+        return decodeEntry(engine, date, encoded);
+    }
+
+    /**
+     * Read the encrypted bytes of many entries in whatever order suits the storage, e.g. a single
+     * pass over each segment file, without consulting or filling the cache. Each can then be
+     * decrypted with {@link #decodeEntry(LocalDate, byte[])}.
+     *
+     * @throws IOException
+     */
+    void scanEntries(final Collection<LocalDate> dates, final Storage.EntryConsumer consumer)
+        throws IOException {
+        storage.scan(dates, consumer);
+    }
+
+    /**
+     * Decrypt an entry read by {@link #scanEntries(Collection, Storage.EntryConsumer)}.
+     *
+     * @throws GeneralSecurityException
+     */
+    Entry decodeEntry(final LocalDate date, final byte[] encoded) throws GeneralSecurityException {
+        return decodeEntry(engine(), date, encoded);
+    }
+
+    private static Entry decodeEntry(final CryptoEngine engine, final LocalDate date,
+        final byte[] encoded) throws GeneralSecurityException {
+        byte[] plaintext;
+        try (Metrics.Timer timer = Metrics.start("decrypt", date)) {
+            plaintext = EntryFormat.decode(engine, encoded);
+            timer.bytes(plaintext.length);
+        }
+
+        try (Metrics.Timer timer = Metrics.start("parse", date)) {
+            return EntryCodec.decode(plaintext);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypt and write a diary entry, and record the new version in its {@link History}. Entries
+     * are always written in the current {@link EntryFormat}, so entries in an older format are
+     * upgraded when next saved.
+     *
+     * @throws IOException if the entry can't be written, or was written but its revision
+     *                     couldn't be recorded
+     * @throws GeneralSecurityException if the entry can't be encrypted
+     */
+    public void saveEntry(final Entry entry) throws IOException, GeneralSecurityException {
+        LocalDate date = entry.getDate();
+
+        keyLock.readLock().lock();
+        try (Metrics.Timer total = Metrics.start("save", date)) {
+            CryptoEngine engine = engine();
+
+            byte[] plaintext;
+            try (Metrics.Timer timer = Metrics.start("encode", date)) {
+                plaintext = EntryCodec.encode(entry);
+                timer.bytes(plaintext.length);
+            }
+
+            byte[] encoded;
+            try (Metrics.Timer timer = Metrics.start("encrypt", date)) {
+                encoded = EntryFormat.encode(engine, getSalt(), Settings.KDF_ITERATIONS,
+                    plaintext);
+                timer.bytes(encoded.length);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+
+            Lock lock = locks.get(date).writeLock();
+            lock.lock();
+            try {
+                String previous = previousVersion(engine, date);
+
+                long modified;
+                try (Metrics.Timer timer = Metrics.start("write", date)) {
+                    modified = storage.write(date, encoded);
+                    timer.bytes(encoded.length);
+                }
+
+                loaded.put(date, modified);
+                index.add(date);
+                cache.put(entry);
+
+                SearchIndex search = searchIndex;
+                if (search != null) {
+                    search.put(new SearchIndex.Document(entry, modified));
+                    searchIndexWrite.schedule();
+                }
+
+                Statistics counted = statistics;
+                if (counted != null) {
+                    counted.put(new Statistics.Summary(entry, modified));
+                    statisticsWrite.schedule();
+                }
+
+                // The entry itself is safe by now, but the caller must still hear that its
+                // revision is missing. Saving the entry again records it.
+                try (Metrics.Timer timer = Metrics.start("history", date)) {
+                    history.append(engine, getSalt(), date, previous, entry.getText());
+                } catch (IOException | GeneralSecurityException e) {
+                    Metrics.counter("history.failed").increment();
+                    throw new IOException("The entry for " + date + " was saved, but its " +
+                        "revision couldn't be recorded.", e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            keyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Change the password, running a task that re-encrypts the diary. Saves and writes of the
+     * search index and statistics wait until the task is done, and then use the new password, so
+     * nothing is written with the old password once re-encryption has started.
+     *
+     * @param password the new password, which is set if the task succeeds
+     * @param change   re-encrypts the diary, writing through {@link #rewrite}
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void changePassword(final String password, final Change change)
+        throws IOException, GeneralSecurityException {
+        keyLock.writeLock().lock();
+        try {
+            change.run();
+            setPassword(password);
+        } finally {
+            keyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A task run by {@link #changePassword}.
+     */
+    interface Change {
+        void run() throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * Replace the stored bytes of an entry, e.g. to re-encrypt it, without racing a save of it.
+     *
+     * @param date      the date of the entry
+     * @param transform given the stored bytes, returns the new ones or null to keep them
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void rewrite(final LocalDate date, final History.Transform transform)
+        throws IOException, GeneralSecurityException {
+        Lock lock = locks.get(date).writeLock();
+        lock.lock();
+        try {
+            byte[] replaced = transform.apply(storage.read(date));
+            if (replaced != null)
+                loaded.put(date, storage.write(date, replaced));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read the version of an entry that a save is about to replace, if the entry has no history
+     * yet, so that it can be recorded as the first revision. The cache only ever holds what is on
+     * disk, so a cached copy saves reading and decrypting the entry again.
+     *
+     * @return the text on disk, or null if there is none or the entry already has history
+     */
+    private String previousVersion(final CryptoEngine engine, final LocalDate date)
+        throws IOException {
+        try {
+            if (!index.contains(date) || history.contains(engine, date))
+                return null;
+
+            Entry cached = cache.get(date);
+            return (cached != null ? cached : readEntry(date)).getText();
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return every saved version of the entry for the given date, oldest first
+     * @throws IOException
+     * @throws GeneralSecurityException if the history can't be decrypted
+     */
+    public List<History.Revision> getRevisions(final LocalDate date)
+        throws IOException, GeneralSecurityException {
+        return history.revisions(engine(), date);
+    }
+
+    /**
+     * @return whether the entry for the given date can be loaded without reading the disk
+     */
+    public boolean isCached(final LocalDate date) {
+        return cache.contains(date);
+    }
+
+    /**
+     * Wipe every decrypted entry held in memory.
+     */
+    public void clearCache() {
+        cache.clear();
+        history.clear();
+    }
+
+    /**
+     * Check whether there is an entry for the given date. This is answered from an in-memory
+     * index, so it is cheap enough to call for every cell of a calendar.
+     */
+    public boolean entryExists(final LocalDate date) {
+        return index.contains(date);
+    }
+
+    /**
+     * List every entry in storage.
+     *
+     * @return the dates of all entries, mapped to when each entry was last written
+     * @throws IOException
+     */
+    public SortedMap<LocalDate, Long> listEntries() throws IOException {
+        return storage.list();
+    }
+
+    /**
+     * Start watching the diary directory for entries changed by other programs, such as a file
+     * sync, unless it is already being watched. Only diaries with a file per entry can be
+     * watched.
+     *
+     * @return the watcher, or null if the diary can't be watched
+     * @throws IOException
+     */
+    public synchronized DiaryWatcher watch() throws IOException {
+        if (watcher == null && storage instanceof FileStorage)
+            watcher = new DiaryWatcher(this, (FileStorage) storage);
+
+        return watcher;
+    }
+
+    /**
+     * Bring everything held in memory up to date with entries that may have been changed by
+     * another program. Entries that are as this store last read or wrote them are left alone.
+     *
+     * @param dates    the dates of the entries that may have changed
+     * @param modified gives when the entry for a date was last written, or -1 if there is none
+     * @return the dates of the entries that had been changed by another program
+     */
+    Set<LocalDate> refresh(final Collection<LocalDate> dates, final ModifiedTime modified) {
+        Set<LocalDate> changed = new HashSet<>();
+
+        for (LocalDate date : dates) {
+            Lock lock = locks.get(date).writeLock();
+            lock.lock();
+            try {
+                long time = modified.of(date);
+                if (isCurrent(date, time))
+                    continue;
+
+                cache.remove(date);
+                history.forget(date);
+                loaded.remove(date);
+                if (time < 0) {
+                    index.remove(date);
+                } else {
+                    index.add(date);
+                }
+                changed.add(date);
+
+                refreshDerived(date, time);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * @param modified when the entry on disk was last modified, or -1 if there is none
+     * @return whether everything held in memory about an entry was taken from the copy on disk
+     */
+    private boolean isCurrent(final LocalDate date, final long modified) {
+        Long known = loaded.get(date);
+        if (known != null)
+            return known == modified;
+
+        SearchIndex search = searchIndex;
+        if (search != null && search.modified(date) != modified)
+            return false;
+        Statistics counted = statistics;
+        if (counted != null && counted.modified(date) != modified)
+            return false;
+
+        return !cache.contains(date) && index.contains(date) == (modified >= 0);
+    }
+
+    /**
+     * @return when the entry for a date was last modified, or -1 if there is none or the storage
+     * doesn't say
+     */
+    private long modified(final LocalDate date) throws IOException {
+        return storage instanceof FileStorage ? ((FileStorage) storage).modified(date) : -1;
+    }
+
+    /**
+     * Bring the search index and statistics, if loaded, up to date with a changed entry.
+     */
+    private void refreshDerived(final LocalDate date, final long modified) throws IOException {
+        SearchIndex search = searchIndex;
+        Statistics counted = statistics;
+
+        if (modified < 0) {
+            if (search != null && search.modified(date) >= 0) {
+                search.remove(date);
+                searchIndexWrite.schedule();
+            }
+            if (counted != null && counted.modified(date) >= 0) {
+                counted.remove(date);
+                statisticsWrite.schedule();
+            }
+            return;
+        }
+
+        boolean searchStale = search != null && search.modified(date) != modified;
+        boolean countStale = counted != null && counted.modified(date) != modified;
+        if (!searchStale && !countStale)
+            return;
+
+        Entry entry;
+        try {
+            entry = readEntry(date);
+        } catch (GeneralSecurityException e) {
+            // Encrypted with another password, as during a password change. It is recounted when
+            // the index and statistics are next loaded, since it was written after they were.
+            return;
+        }
+
+        if (searchStale) {
+            search.put(new SearchIndex.Document(entry, modified));
+            searchIndexWrite.schedule();
+        }
+        if (countStale) {
+            counted.put(new Statistics.Summary(entry, modified));
+            statisticsWrite.schedule();
+        }
+    }
+
+    /**
+     * Gives when the entry for a date was last written, or -1 if there is none.
+     */
+    interface ModifiedTime {
+        long of(LocalDate date) throws IOException;
+    }
+
+    /**
+     * @return the dates of every entry in storage or in anything held in memory
+     * @throws IOException
+     */
+    Set<LocalDate> getKnownDates() throws IOException {
+        Set<LocalDate> dates = new HashSet<>(listEntries().keySet());
+        dates.addAll(loaded.keySet());
+
+        SearchIndex search = searchIndex;
+        if (search != null)
+            dates.addAll(search.dates());
+        Statistics counted = statistics;
+        if (counted != null)
+            dates.addAll(counted.dates());
+
+        return dates;
+    }
+
+    /**
+     * Get the full text search index, loading it on first use. Entries written since the index
+     * was last saved are indexed in parallel, as is the whole diary if there is no index yet.
+     *
+     * @return the search index
+     * @throws IOException
+     * @throws GeneralSecurityException if the index or an entry can't be decrypted
+     */
+    public SearchIndex getSearchIndex() throws IOException, GeneralSecurityException {
+        CryptoEngine engine = engine();
+
+        synchronized (searchIndexLock) {
+            if (searchIndex == null) {
+                SearchIndex index = new SearchIndex();
+
+                byte[] bytes = readSidecar(engine, getSearchIndexPath());
+                if (bytes != null) {
+                    try {
+                        index = SearchIndex.fromBytes(bytes);
+                    } catch (IOException e) {
+                        // Rebuild an unreadable index from scratch.
+                        e.printStackTrace();
+                    }
+                }
+
+                SearchIndex indexed = index;
+                if (update(engine, indexed.dates(), indexed::modified, indexed::remove,
+                    (entry, modified) -> indexed.put(new SearchIndex.Document(entry, modified))))
+                    writeSidecar(getSearchIndexPath(), indexed.toBytes());
+                searchIndex = indexed;
+            }
+
+            return searchIndex;
+        }
+    }
+
+    /**
+     * Get the writing statistics, loading them on first use. Saved statistics are returned at once
+     * and brought into line with storage in the background, as listing every entry takes much
+     * longer than reading them. The whole diary is counted in parallel if there are none yet.
+     *
+     * @return the statistics
+     * @throws IOException
+     * @throws GeneralSecurityException if the statistics or an entry can't be decrypted
+     */
+    public Statistics getStatistics() throws IOException, GeneralSecurityException {
+        CryptoEngine engine = engine();
+
+        synchronized (statisticsLock) {
+            if (statistics == null) {
+                Statistics loaded = null;
+
+                byte[] bytes = readSidecar(engine, getStatisticsPath());
+                if (bytes != null) {
+                    try {
+                        loaded = Statistics.fromBytes(bytes);
+                    } catch (IOException e) {
+                        // Recount unreadable statistics from scratch.
+                        e.printStackTrace();
+                    }
+                }
+
+                if (loaded == null) {
+                    Statistics counted = new Statistics();
+                    updateStatistics(engine, counted);
+                    writeSidecar(getStatisticsPath(), counted.toBytes());
+                    statistics = counted;
+                } else {
+                    Statistics counted = loaded;
+                    statistics = counted;
+                    background.execute(() -> {
+                        try {
+                            if (updateStatistics(engine, counted))
+                                statisticsWrite.schedule();
+                        } catch (IOException | GeneralSecurityException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                }
+            }
+
+            return statistics;
+        }
+    }
+
+    /**
+     * Count the entries changed since statistics were saved. Saves may update the statistics
+     * meanwhile, and their counts are kept in preference to those made here.
+     *
+     * @return whether the statistics changed
+     */
+    private boolean updateStatistics(final CryptoEngine engine, final Statistics counted)
+        throws IOException, GeneralSecurityException {
+        Map<LocalDate, Long> expected = new ConcurrentHashMap<>();
+
+        return update(engine, counted.dates(), date -> {
+            long modified = counted.modified(date);
+            expected.put(date, modified);
+            return modified;
+        }, counted::remove, (entry, modified) -> counted.putIfUnchanged(
+            expected.get(entry.getDate()), new Statistics.Summary(entry, modified)));
+    }
+
+    /**
+     * Bring something derived from the entries, such as the search index, into line with the
+     * entries in storage.
+     *
+     * @param known    the dates of the entries it was derived from
+     * @param modified when the copy of an entry it was derived from was written
+     * @param remove   called with each date that no longer has an entry
+     * @param put      called with each entry that is new or has changed, and when it was written
+     * @return whether anything changed
+     */
+    private boolean update(final CryptoEngine engine, final Set<LocalDate> known,
+        final ToLongFunction<LocalDate> modified, final Consumer<LocalDate> remove,
+        final BiConsumer<Entry, Long> put) throws IOException, GeneralSecurityException {
+        SortedMap<LocalDate, Long> entries = listEntries();
+        boolean changed = false;
+
+        for (LocalDate date : known) {
+            if (!entries.containsKey(date)) {
+                remove.accept(date);
+                changed = true;
+            }
+        }
+
+        List<LocalDate> stale = new ArrayList<>();
+        for (Map.Entry<LocalDate, Long> e : entries.entrySet()) {
+            if (modified.applyAsLong(e.getKey()) != e.getValue())
+                stale.add(e.getKey());
+        }
+
+        // Read sequentially, which suits the storage, then decrypt in parallel.
+        Map<LocalDate, byte[]> encoded = new HashMap<>();
+        storage.scan(stale, encoded::put);
+
+        try {
+            stale.parallelStream().forEach(date -> {
+                try {
+                    put.accept(decodeEntry(engine, date, encoded.get(date)), entries.get(date));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) e.getCause();
+            throw e;
+        }
+
+        return changed || !stale.isEmpty();
+    }
+
+    /**
+     * Write the search index and statistics now rather than waiting for scheduled writes.
+     */
+    public void flush() {
+        searchIndexWrite.flush();
+        statisticsWrite.flush();
+    }
+
+    /**
+     * @return the decrypted contents of a file derived from the entries, or null if there is none
+     */
+    private static byte[] readSidecar(final CryptoEngine engine, final Path path)
+        throws IOException, GeneralSecurityException {
+        if (!Files.exists(path))
+            return null;
+
+        return EntryFormat.decode(engine, Files.readAllBytes(path));
+    }
+
+    private void writeSidecar(final Path path, final byte[] bytes)
+        throws IOException, GeneralSecurityException {
+        keyLock.readLock().lock();
+        try {
+            byte[] encoded =
+                EntryFormat.encode(engine(), getSalt(), Settings.KDF_ITERATIONS, bytes);
+
+            Utils.writeAtomically(path, encoded);
+        } finally {
+            keyLock.readLock().unlock();
+        }
+    }
+
+    Path getSearchIndexPath() {
+        return root.resolve(Settings.INDEXFILE);
+    }
+
+    Path getStatisticsPath() {
+        return root.resolve(Settings.STATSFILE);
+    }
+
+    /**
+     * Get the salt used to derive the key for newly written entries, creating it if this diary
+     * doesn't have one yet. Sharing one salt means the key only has to be derived once.
+     *
+     * @return the diary's key derivation salt
+     * @throws IOException
+     */
+    synchronized byte[] getSalt() throws IOException {
+        if (salt == null) {
+            Path path = root.resolve(Settings.SALTFILE);
+
+            if (Files.exists(path)) {
+                salt = Files.readAllBytes(path);
+            } else {
+                // Entries are encrypted with the salt as soon as it is returned, so it must be on
+                // disk, whole, first.
+                byte[] created = EntryFormat.newSalt();
+                try {
+                    Utils.createAtomically(path, created);
+                    salt = created;
+                } catch (FileAlreadyExistsException e) {
+                    // Another process created it first.
+                    salt = Files.readAllBytes(path);
+                }
+            }
+        }
+
+        return salt;
+    }
+
+    /**
+     * Writes a file derived from the entries a few seconds after it is first changed, so that a
+     * burst of saves results in a single write.
+     */
+    private static class DelayedWrite {
+        private final Write write;
+        private final Object writing = new Object();
+        private ScheduledFuture<?> pending;
+
+        interface Write {
+            void run() throws IOException, GeneralSecurityException;
+        }
+
+        DelayedWrite(final Write write) {
+            this.write = write;
+        }
+
+        synchronized void schedule() {
+            if (pending == null)
+                pending = background.schedule(this::run, 5, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Carry out the pending write now, if there is one.
+         */
+        void flush() {
+            synchronized (this) {
+                if (pending == null || !pending.cancel(false))
+                    return;
+            }
+            run();
+        }
+
+        /**
+         * Write without holding the lock that {@link #schedule()} takes, so that a write waiting
+         * for a password change never holds up a save.
+         */
+        private void run() {
+            synchronized (this) {
+                pending = null;
+            }
+
+            synchronized (writing) {
+                try {
+                    write.run();
+                } catch (IOException | GeneralSecurityException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop watching the diary, write out the search index and statistics, wipe decrypted entries
+     * from memory and release the storage.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (watcher != null)
+                watcher.close();
+            watcher = null;
+        }
+        flush();
+        clearCache();
+        if (storage instanceof SegmentStorage)
+            ((SegmentStorage) storage).close();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches a diary's entry files for changes made by other programs, such as a file sync, so that
+ * what the {@link DiaryStore} holds in memory can be brought up to date without rescanning the
+ * diary. Changes are collected until none have arrived for {@link Settings#WATCH_DELAY}
+ * milliseconds, and each batch is then handed to the store and on to any listeners.
+ */
+public class DiaryWatcher implements AutoCloseable {
+    // The depth of the month directories holding entries, below the diary directory.
+    private static final int DEPTH = 2;
+
+    private final DiaryStore store;
+    private final FileStorage storage;
+    private final Path root;
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final List<Consumer<Set<LocalDate>>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start watching the diary directory and the year and month directories below it.
+     *
+     * @param store   the diary to keep up to date
+     * @param storage the diary's storage
+     * @throws IOException
+     */
+    DiaryWatcher(final DiaryStore store, final FileStorage storage) throws IOException {
+        this.store = store;
+        this.storage = storage;
+        this.root = store.getRoot();
+
+        Files.createDirectories(root);
+        service = root.getFileSystem().newWatchService();
+        register(root, null);
+
+        Thread thread = new Thread(this::run, "diary-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Call the given listener on a background thread with the dates of each batch of entries
+     * changed by other programs.
+     */
+    public void addListener(final Consumer<Set<LocalDate>> listener) {
+        listeners.add(listener);
+    }
+
+    @Override public void close() throws IOException {
+        service.close();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                long deadline = System.nanoTime() +
+                    TimeUnit.MILLISECONDS.toNanos(Settings.WATCH_LIMIT);
+                Set<LocalDate> dates = new HashSet<>();
+                boolean overflow = false;
+
+                // A sync usually writes many files in quick succession, so wait for it to finish
+                // and handle them together.
+                do {
+                    overflow |= handle(key, dates);
+                    key = service.poll(Settings.WATCH_DELAY, TimeUnit.MILLISECONDS);
+                } while (key != null && System.nanoTime() < deadline);
+                if (key != null)
+                    overflow |= handle(key, dates);
+
+                try {
+                    // Events were lost, so check every entry instead.
+                    if (overflow)
+                        dates.addAll(store.getKnownDates());
+
+                    notifyListeners(store.refresh(dates, storage::modified));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped.
+        }
+    }
+
+    /**
+     * Collect the dates of the entries that a watch key's events are about.
+     *
+     * @return whether events were lost
+     */
+    private boolean handle(final WatchKey key, final Set<LocalDate> dates) {
+        Path directory = directories.get(key);
+        boolean overflow = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                overflow = true;
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    register(path, dates);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            LocalDate date = storage.getDate(path);
+            if (date != null)
+                dates.add(date);
+        }
+
+        if (!key.reset())
+            directories.remove(key);
+
+        return overflow;
+    }
+
+    /**
+     * Watch a directory and those below it that may hold entries. Entries already in a directory
+     * that has only just appeared are counted as changed, since no events will arrive for them.
+     *
+     * @param directory the directory to watch
+     * @param dates     collects the dates of entries found, or null if they don't matter
+     */
+    private void register(final Path directory, final Set<LocalDate> dates) throws IOException {
+        int depth = directory.equals(root) ? 0 : root.relativize(directory).getNameCount();
+        if (depth > DEPTH || directory.equals(root.resolve(Settings.HISTORYDIR)))
+            return;
+
+        directories.put(directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE),
+            directory);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    register(path, dates);
+                } else if (dates != null) {
+                    LocalDate date = storage.getDate(path);
+                    if (date != null)
+                        dates.add(date);
+                }
+            }
+        }
+    }
+
+    private void notifyListeners(final Set<LocalDate> dates) {
+        if (dates.isEmpty())
+            return;
+
+        for (Consumer<Set<LocalDate>> listener : listeners) {
+            try {
+                listener.accept(dates);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.time.LocalDate;
 public class Entry {
     protected LocalDate date;
     protected String text = "";
+    protected volatile String savedText = "";
 
     public Entry(final LocalDate date) {
         this.date = date;
@@ -33,6 +34,7 @@ public class Entry {
     public Entry(final LocalDate date, final String text) {
         this.date = date;
         this.text = text;
+        this.savedText = text;
     }
 
     public LocalDate getDate() {
@@ -46,4 +48,21 @@ public class Entry {
     public void setText(String text) {
         this.text = text;
     }
+
+    /**
+     * @return whether the text differs from the text that was last loaded or saved
+     */
+    public boolean isDirty() {
+        return !text.equals(savedText);
+    }
+
+    /**
+     * Record that the given text has been saved. The entry remains dirty if its text has changed
+     * again since.
+     *
+     * @param text the text that was saved
+     */
+    public void markSaved(String text) {
+        this.savedText = text;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of decrypted diary entries. The text of each entry is held
+ * in a char array that is overwritten with zeros when it is evicted or the cache is cleared, so
+ * the cache itself doesn't leave plaintext lying around in memory.
+ */
+public class EntryCache {
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<LocalDate, char[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param maxEntries the maximum number of entries to hold
+     * @param maxBytes   the maximum total size of the cached text, counting two bytes per char
+     */
+    public EntryCache(final int maxEntries, final long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a copy of the cached entry for the given date, or null if it isn't cached
+     */
+    public synchronized Entry get(final LocalDate date) {
+        char[] text = entries.get(date);
+
+        return text == null ? null : new Entry(date, new String(text));
+    }
+
+    public synchronized void put(final Entry entry) {
+        store(entry);
+    }
+
+    /**
+     * Cache an entry that was read from disk, unless a newer copy was saved while it was being
+     * read.
+     */
+    public synchronized void putIfAbsent(final Entry entry) {
+        if (!entries.containsKey(entry.getDate()))
+            store(entry);
+    }
+
+    public synchronized boolean contains(final LocalDate date) {
+        return entries.containsKey(date);
+    }
+
+    private void store(final Entry entry) {
+        char[] text = entry.getText().toCharArray();
+
+        // Don't let a single huge entry flush everything else out.
+        if (size(text) > maxBytes) {
+            remove(entry.getDate());
+            return;
+        }
+
+        char[] previous = entries.put(entry.getDate(), text);
+        if (previous != null) {
+            bytes -= size(previous);
+            Arrays.fill(previous, '\0');
+        }
+        bytes += size(text);
+
+        Iterator<Map.Entry<LocalDate, char[]>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            char[] evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= size(evicted);
+            Arrays.fill(evicted, '\0');
+        }
+    }
+
+    public synchronized void remove(final LocalDate date) {
+        char[] text = entries.remove(date);
+
+        if (text != null) {
+            bytes -= size(text);
+            Arrays.fill(text, '\0');
+        }
+    }
+
+    /**
+     * Remove and wipe every cached entry.
+     */
+    public synchronized void clear() {
+        for (char[] text : entries.values())
+            Arrays.fill(text, '\0');
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static long size(final char[] text) {
+        return 2L * text.length;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Converts entries to and from the JSON plaintext that is encrypted into entry files, e.g.
+ * {@code {"date":"2015-06-21","entry":"..."}}. Text is escaped and encoded as UTF-8, or decoded
+ * and unescaped, in a single pass through a scratch buffer kept for each thread, so there are no
+ * intermediate strings or JSON trees.
+ * <p>
+ * The output is byte for byte what org.json's {@code JSONStringer} produced, so entries are
+ * written exactly as before. Scratch buffers are wiped after use, since they hold plaintext.
+ */
+public class EntryCodec {
+    private static final int INITIAL_BUFFER = 4096;
+
+    // Scratch buffers grown beyond this by a large entry are dropped rather than kept.
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private static final byte[] DATE_KEY = "{\"date\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ENTRY_KEY = ",\"entry\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+    private static final ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(Decoder::new);
+
+    /**
+     * @return the entry as UTF-8 encoded JSON
+     */
+    public static byte[] encode(final Entry entry) {
+        return encoders.get().encode(entry);
+    }
+
+    /**
+     * @param json an entry as UTF-8 encoded JSON
+     * @return the entry
+     * @throws JSONException if the JSON is malformed or lacks the date or text of the entry
+     */
+    public static Entry decode(final byte[] json) {
+        return decoders.get().decode(json);
+    }
+
+    private static class Encoder {
+        private byte[] bytes = new byte[INITIAL_BUFFER];
+        private int length;
+
+        byte[] encode(final Entry entry) {
+            String text = entry.getText();
+            // Most text is ASCII, so this is usually enough without growing.
+            ensureCapacity(DATE_KEY.length + ENTRY_KEY.length + 32 + text.length());
+
+            try {
+                write(DATE_KEY);
+                quote(String.valueOf(entry.getDate()));
+                write(ENTRY_KEY);
+                quote(text);
+                write('}');
+
+                return Arrays.copyOf(bytes, length);
+            } finally {
+                Arrays.fill(bytes, 0, length, (byte) 0);
+                length = 0;
+                if (bytes.length > MAX_RETAINED_BUFFER)
+                    bytes = new byte[INITIAL_BUFFER];
+            }
+        }
+
+        /**
+         * Write a string as a JSON string literal, escaping the same characters as
+         * {@code JSONObject.quote}.
+         */
+        private void quote(final String string) {
+            write('"');
+
+            char previous = 0;
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                ensureCapacity(length + 6);
+
+                switch (c) {
+                    case '\\':
+                    case '"':
+                        write('\\');
+                        write(c);
+                        break;
+                    case '/':
+                        if (previous == '<')
+                            write('\\');
+                        write(c);
+                        break;
+                    case '\b':
+                        write('\\');
+                        write('b');
+                        break;
+                    case '\t':
+                        write('\\');
+                        write('t');
+                        break;
+                    case '\n':
+                        write('\\');
+                        write('n');
+                        break;
+                    case '\f':
+                        write('\\');
+                        write('f');
+                        break;
+                    case '\r':
+                        write('\\');
+                        write('r');
+                        break;
+                    default:
+                        if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
+                            (c >= '\u2000' && c < '\u2100')) {
+                            write('\\');
+                            write('u');
+                            write(HEX[c >> 12 & 0xf]);
+                            write(HEX[c >> 8 & 0xf]);
+                            write(HEX[c >> 4 & 0xf]);
+                            write(HEX[c & 0xf]);
+                        } else if (c < 0x80) {
+                            write(c);
+                        } else if (c < 0x800) {
+                            write(0xc0 | c >> 6);
+                            write(0x80 | c & 0x3f);
+                        } else if (!Character.isSurrogate(c)) {
+                            write(0xe0 | c >> 12);
+                            write(0x80 | c >> 6 & 0x3f);
+                            write(0x80 | c & 0x3f);
+                        } else if (Character.isHighSurrogate(c) && i + 1 < string.length() &&
+                            Character.isLowSurrogate(string.charAt(i + 1))) {
+                            int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                            write(0xf0 | codePoint >> 18);
+                            write(0x80 | codePoint >> 12 & 0x3f);
+                            write(0x80 | codePoint >> 6 & 0x3f);
+                            write(0x80 | codePoint & 0x3f);
+                        } else {
+                            // An unpaired surrogate, which String.getBytes replaces the same way.
+                            write('?');
+                        }
+                }
+
+                previous = c;
+            }
+
+            write('"');
+        }
+
+        private void write(final byte[] b) {
+            ensureCapacity(length + b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        private void write(final int b) {
+            bytes[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+                Arrays.fill(bytes, 0, length, (byte) 0);
+                bytes = grown;
+            }
+        }
+    }
+
+    private static class Decoder {
+        private char[] chars = new char[INITIAL_BUFFER];
+        private int length;
+        private byte[] json;
+        private int position;
+
+        Entry decode(final byte[] json) {
+            // No string in the JSON can have more chars than the JSON has bytes.
+            if (chars.length < json.length)
+                chars = new char[json.length];
+
+            this.json = json;
+            this.position = 0;
+
+            try {
+                LocalDate date = null;
+                String text = null;
+
+                expect('{');
+                if (nextClean() == '}') {
+                    position++;
+                } else {
+                    do {
+                        readString();
+                        boolean isDate = keyEquals("date");
+                        boolean isEntry = keyEquals("entry");
+                        expect(':');
+                        readString();
+
+                        if (isDate)
+                            date = LocalDate.parse(new String(chars, 0, length));
+                        else if (isEntry)
+                            text = new String(chars, 0, length);
+                    } while (next() == ',');
+                    position--;
+                    expect('}');
+                }
+
+                if (date == null)
+                    throw new JSONException("JSONObject[\"date\"] not found.");
+                if (text == null)
+                    throw new JSONException("JSONObject[\"entry\"] not found.");
+
+                return new Entry(date, text);
+            } finally {
+                Arrays.fill(chars, 0, length, '\0');
+                length = 0;
+                this.json = null;
+                if (chars.length > MAX_RETAINED_BUFFER)
+                    chars = new char[INITIAL_BUFFER];
+            }
+        }
+
+        /**
+         * Read a JSON string literal into the scratch buffer, decoding UTF-8 and escapes as it
+         * goes.
+         */
+        private void readString() {
+            Arrays.fill(chars, 0, length, '\0');
+            length = 0;
+            expect('"');
+
+            while (true) {
+                if (position >= json.length)
+                    throw new JSONException("Unterminated string");
+
+                int b = json[position++];
+
+                if (b == '"') {
+                    return;
+                } else if (b == '\\') {
+                    chars[length++] = unescape();
+                } else if (b == '\n' || b == '\r') {
+                    throw new JSONException("Unterminated string");
+                } else if (b >= 0) {
+                    chars[length++] = (char) b;
+                } else {
+                    decodeUTF8(b & 0xff);
+                }
+            }
+        }
+
+        private char unescape() {
+            if (position >= json.length)
+                throw new JSONException("Unterminated string");
+
+            byte b = json[position++];
+            switch (b) {
+                case 'b':
+                    return '\b';
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'f':
+                    return '\f';
+                case 'r':
+                    return '\r';
+                case 'u':
+                    if (position + 4 > json.length)
+                        throw new JSONException("Illegal escape.");
+
+                    int c = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json[position++], 16);
+                        if (digit < 0)
+                            throw new JSONException("Illegal escape.");
+                        c = c << 4 | digit;
+                    }
+                    return (char) c;
+                case '"':
+                case '\'':
+                case '\\':
+                case '/':
+                    return (char) b;
+                default:
+                    throw new JSONException("Illegal escape.");
+            }
+        }
+
+        /**
+         * Decode the rest of a multi-byte UTF-8 sequence, replacing malformed input with U+FFFD
+         * as {@code new String(bytes, UTF_8)} does.
+         */
+        private void decodeUTF8(final int lead) {
+            int extra;
+            int codePoint;
+            int min;
+
+            if (lead >= 0xc2 && lead < 0xe0) {
+                extra = 1;
+                codePoint = lead & 0x1f;
+                min = 0x80;
+            } else if (lead >= 0xe0 && lead < 0xf0) {
+                extra = 2;
+                codePoint = lead & 0x0f;
+                min = 0x800;
+            } else if (lead >= 0xf0 && lead < 0xf5) {
+                extra = 3;
+                codePoint = lead & 0x07;
+                min = 0x10000;
+            } else {
+                chars[length++] = '\ufffd';
+                return;
+            }
+
+            for (int i = 0; i < extra; i++) {
+                if (position >= json.length || (json[position] & 0xc0) != 0x80) {
+                    chars[length++] = '\ufffd';
+                    return;
+                }
+                codePoint = codePoint << 6 | json[position++] & 0x3f;
+            }
+
+            if (codePoint < min || codePoint > Character.MAX_CODE_POINT ||
+                (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                chars[length++] = '\ufffd';
+            } else if (codePoint >= 0x10000) {
+                chars[length++] = Character.highSurrogate(codePoint);
+                chars[length++] = Character.lowSurrogate(codePoint);
+            } else {
+                chars[length++] = (char) codePoint;
+            }
+        }
+
+        private boolean keyEquals(final String key) {
+            if (length != key.length())
+                return false;
+
+            for (int i = 0; i < length; i++) {
+                if (chars[i] != key.charAt(i))
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * @return the next byte that isn't whitespace, without consuming it
+         */
+        private int nextClean() {
+            while (position < json.length && json[position] >= 0 && json[position] <= ' ')
+                position++;
+
+            return position < json.length ? json[position] : -1;
+        }
+
+        private int next() {
+            int b = nextClean();
+            position++;
+
+            return b;
+        }
+
+        private void expect(final char c) {
+            if (next() != c)
+                throw new JSONException("Expected '" + c + "' at " + (position - 1) + ".");
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Converts between plaintext and the bytes stored in an entry file.
+ * <p>
+ * Entries are written as a small header followed by AES-GCM ciphertext:
+ * <pre>
+ * magic (4 bytes) | version (1) | salt length (1) | salt | iterations (4) | nonce (12) | ciphertext
+ * </pre>
+ * The AES key is derived from the password with PBKDF2 using the salt and iteration count from the
+ * header, and the header itself is authenticated along with the ciphertext.
+ * <p>
+ * Since version 2 the plaintext is compressed before it is encrypted. The ciphertext decrypts to
+ * <pre>
+ * codec (1 byte) | plaintext length (4) | plaintext, stored or deflated
+ * </pre>
+ * where short entries, and any that don't get smaller, are stored as they are. Version 1 files,
+ * whose ciphertext decrypts straight to the plaintext, and files written before this format
+ * existed, which hold Base64 encoded Blowfish ciphertext, are still read.
+ */
+public class EntryFormat {
+    // The first byte can't occur in Base64 text, so old files are never mistaken for new ones.
+    private static final byte[] MAGIC = {(byte) 0xD1, 'A', 'R', 'Y'};
+    private static final byte VERSION_AES_GCM = 1;
+    private static final byte VERSION_COMPRESSED = 2;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    // The header is read before anything is authenticated, so a corrupt or malicious iteration
+    // count must not be able to stall key derivation.
+    private static final int MAX_ITERATIONS = 10_000_000;
+
+    private static final byte CODEC_STORED = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int PAYLOAD_HEADER_LENGTH = 5;
+
+    // Compressing anything shorter saves too few bytes to be worth the time.
+    private static final int MIN_COMPRESS_LENGTH = 256;
+
+    // Creating these allocates native memory, so each thread keeps and resets its own.
+    private static final ThreadLocal<Deflater> deflaters =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Compress and encrypt plaintext into the current entry file format.
+     *
+     * @param engine     the engine holding the password
+     * @param salt       the key derivation salt
+     * @param iterations the key derivation iteration count
+     * @param plaintext  the bytes to encrypt
+     * @return the contents of the entry file
+     * @throws GeneralSecurityException
+     */
+    public static byte[] encode(final CryptoEngine engine, final byte[] salt, final int iterations,
+        final byte[] plaintext) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+
+        ByteBuffer header = ByteBuffer.allocate(headerLength(salt.length));
+        header.put(MAGIC).put(VERSION_COMPRESSED).put((byte) salt.length).put(salt)
+            .putInt(iterations).put(nonce);
+
+        byte[] payload = new byte[PAYLOAD_HEADER_LENGTH + plaintext.length];
+        int payloadLength = compress(plaintext, payload);
+
+        try {
+            Cipher cipher = engine.aesCipher(Cipher.ENCRYPT_MODE, salt, iterations, nonce);
+            cipher.updateAAD(header.array());
+
+            byte[] encoded = new byte[header.capacity() + cipher.getOutputSize(payloadLength)];
+            System.arraycopy(header.array(), 0, encoded, 0, header.capacity());
+            cipher.doFinal(payload, 0, payloadLength, encoded, header.capacity());
+
+            return encoded;
+        } finally {
+            Arrays.fill(payload, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt the contents of an entry file in either the current or the old format.
+     *
+     * @param engine  the engine holding the password
+     * @param encoded the contents of the entry file
+     * @return the decrypted plaintext
+     * @throws GeneralSecurityException if the file is corrupt or the password is wrong
+     */
+    public static byte[] decode(final CryptoEngine engine, final byte[] encoded)
+        throws GeneralSecurityException {
+        if (!isCurrent(encoded)) {
+            byte[] ciphertext;
+            try {
+                ciphertext = Base64.getDecoder().decode(encoded);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("The entry is neither current nor Base64.", e);
+            }
+            return engine.decrypt(ciphertext);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        buffer.position(MAGIC.length);
+
+        byte version = buffer.get();
+        if (version != VERSION_AES_GCM && version != VERSION_COMPRESSED)
+            throw new GeneralSecurityException("Unsupported entry format version " + version + ".");
+
+        int saltLength = buffer.get() & 0xff;
+        if (saltLength == 0 || buffer.remaining() < headerLength(saltLength) - buffer.position())
+            throw new GeneralSecurityException("The entry header is corrupt.");
+
+        byte[] salt = new byte[saltLength];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        buffer.get(salt);
+        int iterations = buffer.getInt();
+        buffer.get(nonce);
+
+        // Some providers fail with an unchecked exception on ciphertext shorter than the tag.
+        if (buffer.remaining() < TAG_LENGTH)
+            throw new GeneralSecurityException("The entry is truncated.");
+        if (iterations <= 0 || iterations > MAX_ITERATIONS)
+            throw new GeneralSecurityException("Unsupported key derivation iteration count " +
+                iterations + ".");
+
+        Cipher cipher = engine.aesCipher(Cipher.DECRYPT_MODE, salt, iterations, nonce);
+        cipher.updateAAD(encoded, 0, buffer.position());
+
+        byte[] decrypted = cipher.doFinal(encoded, buffer.position(), buffer.remaining());
+        if (version == VERSION_AES_GCM)
+            return decrypted;
+
+        try {
+            return decompress(decrypted);
+        } finally {
+            Arrays.fill(decrypted, (byte) 0);
+        }
+    }
+
+    /**
+     * Write the payload for some plaintext, deflating it if it's long enough and compresses.
+     *
+     * @param payload an array with room for the header and the plaintext stored as it is
+     * @return the length of the payload
+     */
+    private static int compress(final byte[] plaintext, final byte[] payload) {
+        ByteBuffer header = ByteBuffer.wrap(payload, 0, PAYLOAD_HEADER_LENGTH);
+
+        if (plaintext.length >= MIN_COMPRESS_LENGTH) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(plaintext);
+            deflater.finish();
+
+            // If the deflated plaintext doesn't fit in the space it would take stored, it didn't
+            // compress.
+            int length = PAYLOAD_HEADER_LENGTH;
+            while (!deflater.finished() && length < payload.length)
+                length += deflater.deflate(payload, length, payload.length - length);
+
+            if (deflater.finished()) {
+                header.put(CODEC_DEFLATE).putInt(plaintext.length);
+                return length;
+            }
+        }
+
+        header.put(CODEC_STORED).putInt(plaintext.length);
+        System.arraycopy(plaintext, 0, payload, PAYLOAD_HEADER_LENGTH, plaintext.length);
+
+        return payload.length;
+    }
+
+    private static byte[] decompress(final byte[] payload) throws GeneralSecurityException {
+        if (payload.length < PAYLOAD_HEADER_LENGTH)
+            throw new GeneralSecurityException("The entry payload is truncated.");
+
+        ByteBuffer header = ByteBuffer.wrap(payload);
+        byte codec = header.get();
+        int length = header.getInt();
+
+        if (codec == CODEC_STORED && length == payload.length - PAYLOAD_HEADER_LENGTH)
+            return Arrays.copyOfRange(payload, PAYLOAD_HEADER_LENGTH, payload.length);
+        if (codec != CODEC_DEFLATE || length < 0)
+            throw new GeneralSecurityException("The entry payload is corrupt.");
+
+        byte[] plaintext = new byte[length];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload, PAYLOAD_HEADER_LENGTH, payload.length - PAYLOAD_HEADER_LENGTH);
+
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(plaintext, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+
+            if (inflated != length || !inflater.finished())
+                throw new GeneralSecurityException("The entry payload is corrupt.");
+        } catch (DataFormatException e) {
+            throw new GeneralSecurityException("The entry payload is corrupt.", e);
+        }
+
+        return plaintext;
+    }
+
+    /**
+     * @return whether the given file contents are in the current format
+     */
+    public static boolean isCurrent(final byte[] encoded) {
+        if (encoded.length < MAGIC.length + 2)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (encoded[i] != MAGIC[i])
+                return false;
+        }
+
+        return encoded.length >= headerLength(encoded[MAGIC.length + 1] & 0xff);
+    }
+
+    /**
+     * @return a new random salt for key derivation
+     */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+
+        return salt;
+    }
+
+    private static int headerLength(final int saltLength) {
+        return MAGIC.length + 2 + saltLength + 4 + NONCE_LENGTH;
+    }
+}
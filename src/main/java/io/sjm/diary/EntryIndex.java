@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * An in-memory record of which days have a diary entry. Each month is scanned from disk at most
+ * once and is then kept as a bitmask with one bit per day of the month.
+ */
+public class EntryIndex {
+    private final ConcurrentMap<YearMonth, Integer> months = new ConcurrentHashMap<>();
+    private final Function<YearMonth, Integer> scanner;
+
+    /**
+     * @param scanner returns the bitmask of existing entries for a month that isn't yet indexed
+     */
+    public EntryIndex(final Function<YearMonth, Integer> scanner) {
+        this.scanner = scanner;
+    }
+
+    public boolean contains(final LocalDate date) {
+        int mask = months.computeIfAbsent(YearMonth.from(date), scanner);
+
+        return (mask & bit(date)) != 0;
+    }
+
+    /**
+     * Record that an entry now exists for the given date.
+     */
+    public void add(final LocalDate date) {
+        YearMonth month = YearMonth.from(date);
+
+        // Make sure the rest of the month has been scanned before the bit is merged in.
+        months.computeIfAbsent(month, scanner);
+        months.merge(month, bit(date), (a, b) -> a | b);
+    }
+
+    /**
+     * Record that there is no longer an entry for the given date.
+     */
+    public void remove(final LocalDate date) {
+        months.computeIfPresent(YearMonth.from(date), (month, mask) -> mask & ~bit(date));
+    }
+
+    /**
+     * Forget everything that is known about the given month so that it is rescanned on next use.
+     */
+    public void invalidate(final YearMonth month) {
+        months.remove(month);
+    }
+
+    public void clear() {
+        months.clear();
+    }
+
+    private static int bit(final LocalDate date) {
+        return 1 << (date.getDayOfMonth() - 1);
+    }
+
+    /**
+     * Build the bitmask for a month by listing the directory that holds its entries once, rather
+     * than checking each day's file separately.
+     *
+     * @param month     the month to scan
+     * @param directory the directory holding that month's entries
+     * @param fileName  maps a date to the name of its entry file
+     * @return the bitmask of days in the month with an entry file
+     */
+    static int scanDirectory(final YearMonth month, final Path directory,
+        final Function<LocalDate, String> fileName) {
+        Set<String> names = new HashSet<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream)
+                names.add(path.getFileName().toString());
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+
+        int mask = 0;
+        for (int day = 1; day <= month.lengthOfMonth(); day++) {
+            if (names.contains(fileName.apply(month.atDay(day))))
+                mask |= 1 << (day - 1);
+        }
+
+        return mask;
+    }
+}
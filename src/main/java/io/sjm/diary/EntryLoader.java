@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads and saves diary entries on background threads so that disk access and decryption never
+ * block the JavaFX application thread. Only the most recently requested load is carried out;
+ * older requests that haven't started yet are dropped. Saves for the same date are performed one
+ * after another, and a load waits for any outstanding save of its date.
+ */
+public class EntryLoader {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "entry-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong latestLoad = new AtomicLong();
+    private final ConcurrentMap<LocalDate, CompletableFuture<Void>> saves =
+        new ConcurrentHashMap<>();
+    private final ConcurrentMap<LocalDate, Entry> latestSaves = new ConcurrentHashMap<>();
+
+    /**
+     * Load the entry for the given date, or create an empty one if none exists. Requesting another
+     * load before this one has started causes this one to complete with a
+     * {@link CancellationException}.
+     *
+     * @param date the date of the entry to load
+     * @return a future completing with the entry
+     */
+    public CompletableFuture<Entry> load(final LocalDate date) {
+        final long request = latestLoad.incrementAndGet();
+
+        return pendingSave(date).thenApplyAsync(ignored -> {
+            if (request != latestLoad.get())
+                throw new CancellationException("Superseded by a later load.");
+
+            try {
+                return Utils.entryExists(date) ? Utils.loadEntry(date) : new Entry(date);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Save a copy of the given entry once any earlier save of the same date has finished. Nothing
+     * is written if the entry hasn't changed since it was last loaded or saved, and a save that is
+     * still waiting when a newer one for the same date arrives is skipped in favour of the newer
+     * one.
+     *
+     * @param entry the entry to save
+     * @return a future completing when the entry has been written
+     */
+    public CompletableFuture<Void> save(final Entry entry) {
+        if (!entry.isDirty())
+            return DONE;
+
+        final Entry snapshot = new Entry(entry.getDate(), entry.getText());
+        final LocalDate date = snapshot.getDate();
+
+        latestSaves.put(date, snapshot);
+
+        CompletableFuture<Void> save = saves.compute(date, (d, previous) ->
+            (previous == null ? DONE : previous.handle((v, e) -> (Void) null))
+                .thenRunAsync(() -> {
+                    if (latestSaves.get(date) != snapshot)
+                        return;
+
+                    try {
+                        Utils.saveEntry(snapshot);
+                        entry.markSaved(snapshot.getText());
+                    } catch (IOException | GeneralSecurityException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        latestSaves.remove(date, snapshot);
+                    }
+                }, executor));
+        save.whenComplete((v, e) -> saves.remove(date, save));
+
+        return save;
+    }
+
+    /**
+     * Stop accepting work and wait for outstanding saves to reach the disk.
+     */
+    public void shutdown() {
+        flush();
+        executor.shutdown();
+    }
+
+    /**
+     * Wait for outstanding saves to reach the disk.
+     */
+    public void flush() {
+        try {
+            // Chained saves are only submitted once their predecessor is done, so wait for them
+            // before the executor starts rejecting work.
+            CompletableFuture.allOf(saves.values().toArray(new CompletableFuture[0]))
+                .handle((v, e) -> null).get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return a future that completes, successfully or not, when the pending save of a date is done
+     */
+    private CompletableFuture<Void> pendingSave(final LocalDate date) {
+        CompletableFuture<Void> save = saves.get(date);
+
+        return save == null ? DONE : save.handle((v, e) -> null);
+    }
+
+    /**
+     * Strip the wrapper that {@link CompletableFuture} puts around exceptions thrown by its tasks.
+     */
+    static Throwable unwrap(final Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+}
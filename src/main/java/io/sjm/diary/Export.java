@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes entries out as plain text. Each year's entries are read in one sequential pass over the
+ * storage, then decrypted and formatted on a pool of threads, but written in date order. Only one
+ * year of encrypted entries, and a fixed window of formatted ones ahead of the one being written,
+ * is held at once, so memory use doesn't grow with the size of the diary.
+ */
+public class Export {
+    public enum Format {
+        JSONL, MARKDOWN, TXT;
+
+        public static Format parse(final String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown format " + name + ".");
+            }
+        }
+    }
+
+    private final Format format;
+    private final int threads;
+
+    /**
+     * @param format  the format to write entries in
+     * @param threads the number of entries to decrypt at once
+     */
+    public Export(final Format format, final int threads) {
+        this.format = format;
+        this.threads = threads;
+    }
+
+    /**
+     * Write the entries for the given dates, in the order given.
+     *
+     * @param dates the dates of the entries to export
+     * @param out   where to write the entries
+     * @return the number of entries written
+     * @throws IOException
+     * @throws GeneralSecurityException if an entry can't be decrypted
+     */
+    public int write(final Collection<LocalDate> dates, final OutputStream out)
+        throws IOException, GeneralSecurityException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "export");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Keep every thread busy while the oldest entry is waiting to be written.
+        int windowSize = threads * 4;
+        Deque<Future<byte[]>> window = new ArrayDeque<>(windowSize);
+        int count = 0;
+
+        try {
+            for (List<LocalDate> year : byYear(dates)) {
+                Map<LocalDate, byte[]> encoded = new HashMap<>();
+                Utils.scanEntries(year, encoded::put);
+
+                Iterator<LocalDate> remaining = year.iterator();
+                while (remaining.hasNext() || !window.isEmpty()) {
+                    while (remaining.hasNext() && window.size() < windowSize) {
+                        LocalDate date = remaining.next();
+                        byte[] bytes = encoded.remove(date);
+                        window.add(executor.submit(() -> format(Utils.decodeEntry(date, bytes))));
+                    }
+
+                    out.write(take(window.remove()));
+                    count++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Split dates into runs from the same year, keeping their order.
+     */
+    private static List<List<LocalDate>> byYear(final Collection<LocalDate> dates) {
+        List<List<LocalDate>> years = new ArrayList<>();
+        List<LocalDate> year = null;
+
+        for (LocalDate date : dates) {
+            if (year == null || year.get(0).getYear() != date.getYear()) {
+                year = new ArrayList<>();
+                years.add(year);
+            }
+            year.add(date);
+        }
+
+        return years;
+    }
+
+    private byte[] format(final Entry entry) {
+        switch (format) {
+            case JSONL:
+                byte[] json = EntryCodec.encode(entry);
+                byte[] line = new byte[json.length + 1];
+                System.arraycopy(json, 0, line, 0, json.length);
+                line[json.length] = '\n';
+                return line;
+            case MARKDOWN:
+                return ("# " + entry.getDate() + "\n\n" + entry.getText() + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            default:
+                return (entry.getDate() + "\n\n" + entry.getText() + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] take(final Future<byte[]> future)
+        throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
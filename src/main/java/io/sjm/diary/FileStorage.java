@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Stores each entry in a file of its own, in a directory per month, e.g.
+ * {@code ~/diary/2015/06/2015-06-21.json}.
+ */
+public class FileStorage implements Storage {
+    private final Path root;
+    private final DateTimeFormatter dirFormatter;
+    private final DateTimeFormatter fileFormatter;
+
+    /**
+     * @param root       the diary directory
+     * @param dirFormat  the pattern giving the directory of an entry relative to the root
+     * @param fileFormat the pattern giving the file name of an entry, without its extension
+     */
+    public FileStorage(final Path root, final String dirFormat, final String fileFormat) {
+        this.root = root;
+        this.dirFormatter = DateTimeFormatter.ofPattern(dirFormat);
+        this.fileFormatter = DateTimeFormatter.ofPattern(fileFormat);
+    }
+
+    @Override public byte[] read(final LocalDate date) throws IOException {
+        return Files.readAllBytes(getPath(date));
+    }
+
+    @Override public long write(final LocalDate date, final byte[] bytes) throws IOException {
+        Path path = getPath(date);
+
+        Utils.writeAtomically(path, bytes);
+
+        return Files.getLastModifiedTime(path).toMillis();
+    }
+
+    @Override public void delete(final LocalDate date) throws IOException {
+        Path path = getPath(date);
+        Files.deleteIfExists(path);
+
+        // Tidy up directories left empty, stopping at the diary directory itself.
+        for (Path dir = path.getParent(); dir != null && !dir.equals(root); dir = dir.getParent()) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                break;
+            }
+        }
+    }
+
+    @Override public int scanMonth(final YearMonth month) {
+        return EntryIndex.scanDirectory(month, getDirectory(month.atDay(1)), this::getFileName);
+    }
+
+    @Override public SortedMap<LocalDate, Long> list() throws IOException {
+        SortedMap<LocalDate, Long> entries = new TreeMap<>();
+
+        if (!Files.isDirectory(root))
+            return entries;
+
+        try (Stream<Path> paths = Files.find(root, 3, (p, attrs) -> attrs.isRegularFile())) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                LocalDate date = getDate(path);
+                if (date != null)
+                    entries.put(date, Files.getLastModifiedTime(path).toMillis());
+            }
+        }
+
+        return entries;
+    }
+
+    @Override public void scan(final Collection<LocalDate> dates, final EntryConsumer consumer)
+        throws IOException {
+        List<LocalDate> sorted = new ArrayList<>(dates);
+        sorted.sort(null);
+
+        for (LocalDate date : sorted)
+            consumer.accept(date, read(date));
+    }
+
+    /**
+     * Given a date, generate a file path for entry loading and saving.
+     *
+     * @param date the date of the relevant diary entry
+     * @return the path to the diary entry
+     */
+    Path getPath(final LocalDate date) {
+        return getDirectory(date).resolve(getFileName(date));
+    }
+
+    /**
+     * @param path a file in the diary directory
+     * @return the date of the entry held in the file, or null if it doesn't hold an entry
+     */
+    LocalDate getDate(final Path path) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(".json"))
+            return null;
+
+        try {
+            LocalDate date = LocalDate.parse(name.substring(0, name.length() - 5), fileFormatter);
+            return getPath(date).equals(path) ? date : null;
+        } catch (DateTimeParseException e) {
+            // Not an entry.
+            return null;
+        }
+    }
+
+    /**
+     * @return when the entry for a date was last written, or -1 if there is no entry
+     * @throws IOException
+     */
+    long modified(final LocalDate date) throws IOException {
+        try {
+            return Files.getLastModifiedTime(getPath(date)).toMillis();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    private Path getDirectory(final LocalDate date) {
+        return root.resolve(date.format(dirFormatter));
+    }
+
+    private String getFileName(final LocalDate date) {
+        return date.format(fileFormatter) + ".json";
+    }
+}
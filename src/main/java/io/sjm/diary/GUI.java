@@ -16,7 +16,12 @@
 
 package io.sjm.diary;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.event.Event;
+import javafx.geometry.Insets;
+import javafx.geometry.Side;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
@@ -24,19 +29,40 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
+import javafx.stage.Modality;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import javafx.util.Pair;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.time.LocalDate;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class GUI extends Stage {
     private DatePicker datePicker = new DatePicker();
     private TextArea textArea = new TextArea();
 
+    private final EntryLoader loader = new EntryLoader();
+    private final Prefetcher prefetcher = new Prefetcher();
+
+    private final PauseTransition autosave =
+        new PauseTransition(Duration.seconds(Settings.AUTOSAVE_DELAY));
+
     private Entry entry;
+    private long viewRequest;
+
+    // The displayed entry, if another program has changed it on disk while it had unsaved edits.
+    private Entry changedOnDisk;
+
+    // Set while the date picker is put back to the displayed entry, so that doesn't view it again.
+    private boolean restoringDate;
 
     public GUI() {
         BorderPane mainLayout = new BorderPane();
@@ -44,6 +70,8 @@ public class GUI extends Stage {
 
         textArea.setWrapText(true);
         textArea.setFont(Font.font(16)); // TODO Make proportional to screen size/DPI.
+        textArea.setPromptText("Loading...");
+        textArea.setDisable(true);
 
         addEventHandler(KeyEvent.KEY_PRESSED, e -> {
             if (e.isControlDown() && e.getCode() == KeyCode.W) {
@@ -53,25 +81,58 @@ public class GUI extends Stage {
 
         addEventHandler(KeyEvent.KEY_PRESSED, e -> {
             if (e.isControlDown() && e.getCode() == KeyCode.S) {
-                entry.setText(textArea.getText());
-                try {
-                    if (Settings.PASSWORD.isEmpty())
-                        Settings.PASSWORD = getPassword("Please enter a password.");
-                    Utils.saveEntry(entry);
-                } catch (IOException ex) {
-                    ExceptionDialog ed = new ExceptionDialog(ex);
-                    ed.showAndWait();
-                }
+                saveEntry();
             }
         });
 
+        // Save a little while after typing stops, so that a burst of edits costs a single write.
+        // Autosave never prompts for a password; until one has been entered, only Ctrl+S saves.
+        textArea.textProperty().addListener((observable, oldText, newText) -> {
+            if (entry != null && !textArea.isDisabled()) {
+                entry.setText(newText);
+                autosave.playFromStart();
+            }
+        });
+        autosave.setOnFinished(e -> {
+            if (Utils.isUnlocked() && entry != changedOnDisk)
+                saveEntry();
+        });
+
         mainLayout.setTop(hBox);
         mainLayout.setCenter(textArea);
 
+        // Don't lose saves that are still in flight when the window is closed.
+        setOnCloseRequest(e -> {
+            if (!shutdown())
+                e.consume();
+        });
+
         setTitle("Diary");
         setScene(new Scene(mainLayout, 800, 600));
+    }
+
+    /**
+     * Display today's entry, asking for the password first if need be. Called once the window is
+     * showing, so that it appears without waiting for the password or the disk.
+     */
+    public void open() {
+        // Entries may be encrypted with a mixture of passwords until an interrupted password
+        // change is finished.
+        if (PasswordChange.inProgress())
+            changePassword("A password change was interrupted. Please enter both passwords to " +
+                "finish it.");
+        else
+            viewEntry(LocalDate.now());
 
-        viewEntry(LocalDate.now());
+        CompletableFuture.runAsync(() -> {
+            try {
+                DiaryWatcher watcher = Utils.watch();
+                if (watcher != null)
+                    watcher.addListener(dates -> Platform.runLater(() -> entriesChanged(dates)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
     }
 
     private HBox buildMenuBar(final DatePicker datePicker) {
@@ -79,11 +140,20 @@ public class GUI extends Stage {
 
         MenuBar menuBar = new MenuBar();
         Menu fileMenu = new Menu("File");
+        MenuItem historyMenu = new MenuItem("History...");
+        MenuItem passwordMenu = new MenuItem("Change Password...");
         MenuItem exitMenu = new MenuItem("Exit");
         Menu helpMenu = new Menu("Help");
+        MenuItem diagnosticsMenu = new MenuItem("Diagnostics...");
 
+        passwordMenu.setOnAction(
+            e -> changePassword("Please enter your current and new password."));
+        historyMenu.setOnAction(e -> showHistory());
         exitMenu.setOnAction(e -> exit(0));
-        fileMenu.getItems().addAll(exitMenu);
+        fileMenu.getItems().addAll(historyMenu, passwordMenu, new SeparatorMenuItem(), exitMenu);
+
+        diagnosticsMenu.setOnAction(e -> new DiagnosticsDialog().showAndWait());
+        helpMenu.getItems().add(diagnosticsMenu);
 
         menuBar.getMenus().addAll(fileMenu, helpMenu);
 
@@ -93,13 +163,26 @@ public class GUI extends Stage {
             @Override public void updateItem(LocalDate item, boolean empty) {
                 super.updateItem(item, empty);
 
-                if (Utils.entryExists(item))
+                // Cells are reused as the popup changes month, so always reset the style.
+                if (!empty && item != null && Utils.entryExists(item))
                     setStyle("-fx-background-color: #6fc;");
+                else
+                    setStyle("");
             }
         });
-        datePicker.setOnAction(e -> viewEntry(datePicker.getValue()));
+        datePicker.setOnAction(e -> {
+            if (!restoringDate)
+                viewEntry(datePicker.getValue());
+        });
+
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search");
+        searchField.setOnAction(e -> search(searchField));
 
-        hBox.getChildren().addAll(menuBar, this.datePicker);
+        Button statisticsButton = new Button("Statistics");
+        statisticsButton.setOnAction(e -> showStatistics());
+
+        hBox.getChildren().addAll(menuBar, searchField, this.datePicker, statisticsButton);
         HBox.setHgrow(menuBar, Priority.ALWAYS);
 
         return hBox;
@@ -107,50 +190,398 @@ public class GUI extends Stage {
 
     /**
      * Sets the contents of the text area to the diary entry corresponding to the specified date.
+     * The entry is loaded in the background and the text area is disabled until it arrives.
      *
      * @param date the date of the diary entry to display
      */
     private void viewEntry(final LocalDate date) {
-        if (Utils.entryExists(date)) {
-            entry = loadEntry(date);
-        } else {
-            entry = new Entry(date);
+        if (Utils.entryExists(date) && !Utils.isUnlocked())
+            Utils.setPassword(getPassword("Please enter your password."));
+
+        // Don't lose unsaved edits to the entry being left, and stay on it if the user cancels.
+        if (entry != null && Utils.isUnlocked() && !saveEntry()) {
+            restoringDate = true;
+            try {
+                datePicker.setValue(entry.getDate());
+            } finally {
+                restoringDate = false;
+            }
+            return;
+        }
+
+        final long request = ++viewRequest;
+        final ViewEntryEvent event = Metrics.isRecording() ? new ViewEntryEvent() : null;
+        final long start = System.nanoTime();
+        final boolean cached = Utils.isCached(date);
+        if (event != null)
+            event.begin();
+
+        // Keep the prefetcher out of the way of the load the user is waiting for.
+        prefetcher.cancel();
+
+        entry = null;
+        textArea.setDisable(true);
+
+        loader.load(date).whenComplete((loaded, ex) -> Platform.runLater(() -> {
+            Throwable failure = ex == null ? null : EntryLoader.unwrap(ex);
+
+            // Ignore the result if another date has been selected in the meantime.
+            if (request == viewRequest)
+                showEntry(date, loaded, failure);
+
+            recordView(event, cached, start, date, request == viewRequest ? loaded : null,
+                failure);
+        }));
+    }
+
+    /**
+     * Record how long it took from a date being chosen to its entry being displayed, or to the
+     * request being abandoned.
+     */
+    private void recordView(final ViewEntryEvent event, final boolean cached, final long start,
+        final LocalDate date, final Entry shown, final Throwable failure) {
+        String outcome;
+        if (failure != null)
+            outcome = failure.getClass().getSimpleName();
+        else if (shown == null)
+            outcome = "Superseded";
+        else
+            outcome = "Shown";
+
+        if (shown != null)
+            Metrics.histogram(cached ? "view.cached" : "view").record(
+                System.nanoTime() - start);
+        Metrics.counter("view." + outcome).increment();
+
+        if (event == null)
+            return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.date = date.toString();
+            event.cached = cached;
+            event.length = shown == null ? 0 : shown.getText().length();
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /**
+     * Display the outcome of loading a diary entry. If decryption failed, keep prompting the user
+     * for a password and retry the load. In the case of an IO error, disable the text area.
+     *
+     * @param date    the date of the entry that was loaded
+     * @param loaded  the loaded entry, or null if loading failed
+     * @param failure the reason loading failed, or null if it succeeded
+     */
+    private void showEntry(final LocalDate date, final Entry loaded, final Throwable failure) {
+        if (failure instanceof CancellationException) {
+            return;
+        } else if (failure instanceof GeneralSecurityException) {
+            // This usually occurs when decrypting using an incorrect password.
+            Utils.setPassword(getPassword("Invalid password. Please try again."));
+            viewEntry(date);
+            return;
+        } else if (failure != null) {
+            showException(failure);
         }
 
+        entry = loaded;
+
         if (entry == null) {
             textArea.setText("");
             textArea.setDisable(true);
         } else {
             textArea.setText(entry.getText());
+            textArea.setPromptText(null);
             textArea.setDisable(false);
+            prefetcher.prefetch(date);
+            Startup.ready();
         }
         textArea.requestFocus();
     }
 
     /**
-     * Attempt loading and decryption of a diary entry and if it fails, keep prompting the user for
-     * a password until decryption succeeds. In the case of an IO error, return null.
+     * Save the displayed entry in the background if it has changed since it was last saved.
      *
-     * @param date the date of the entry to be loaded and decrypted
-     * @return the relevant diary entry or null in the case of failure
+     * @return false if the entry has changed on disk and the user cancelled rather than overwrite
+     * it or discard their edits
      */
-    private Entry loadEntry(final LocalDate date) {
-        if (Settings.PASSWORD.isEmpty())
-            Settings.PASSWORD = getPassword("Please enter your password.");
+    private boolean saveEntry() {
+        autosave.stop();
 
-        while (true) {
+        if (entry == null || !entry.isDirty())
+            return true;
+        if (entry == changedOnDisk && !confirmOverwrite())
+            return false;
+        if (!Utils.isUnlocked())
+            Utils.setPassword(getPassword("Please enter a password."));
+
+        // Nothing is written if the user chose to discard their edits.
+        loader.save(entry).whenComplete((v, ex) -> {
+            if (ex != null)
+                Platform.runLater(() -> showException(EntryLoader.unwrap(ex)));
+        });
+
+        return true;
+    }
+
+    /**
+     * Warn that the displayed entry has been changed on disk by another program since it was
+     * loaded, and ask whether to overwrite that version. Discarding the edits instead marks the
+     * entry as saved and displays the version on disk.
+     *
+     * @return false if the user cancelled
+     */
+    private boolean confirmOverwrite() {
+        final Entry shown = entry;
+        ButtonType overwrite = new ButtonType("Overwrite", ButtonBar.ButtonData.OK_DONE);
+        ButtonType discard = new ButtonType("Discard My Changes", ButtonBar.ButtonData.OTHER);
+
+        Alert alert = new Alert(Alert.AlertType.WARNING, "The entry for " + shown.getDate() +
+            " has been changed by another program, perhaps on another computer, since it was " +
+            "opened. Saving will replace that version with this one.", overwrite, discard,
+            ButtonType.CANCEL);
+        alert.setTitle("Entry Changed");
+        alert.setHeaderText("This entry has changed on disk.");
+        Optional<ButtonType> choice = alert.showAndWait();
+
+        if (choice.isPresent() && choice.get() == overwrite) {
+            changedOnDisk = null;
+            return true;
+        } else if (choice.isPresent() && choice.get() == discard) {
+            changedOnDisk = null;
+            shown.markSaved(shown.getText());
+            // Unless another date is being displayed instead.
+            Platform.runLater(() -> {
+                if (entry == shown)
+                    viewEntry(shown.getDate());
+            });
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * React to entries changed on disk by another program. The displayed entry is reloaded if it
+     * has no unsaved edits, and otherwise isn't saved again until the user has been warned.
+     *
+     * @param dates the dates of the changed entries
+     */
+    private void entriesChanged(final Set<LocalDate> dates) {
+        if (entry == null || !dates.contains(entry.getDate()))
+            return;
+
+        if (entry.isDirty())
+            changedOnDisk = entry;
+        else
+            viewEntry(entry.getDate());
+    }
+
+    /**
+     * Show the saved versions of the displayed entry, once any edits to it have been saved, and
+     * replace its text with the version chosen. The restored text is saved as a new version, so
+     * restoring can itself be undone.
+     */
+    private void showHistory() {
+        if (entry == null || !Utils.isUnlocked())
+            return;
+        // Having discarded their edits, the user sees the version on disk before its history.
+        if (entry == changedOnDisk && entry.isDirty() && (!confirmOverwrite() || !entry.isDirty()))
+            return;
+
+        autosave.stop();
+        final Entry shown = entry;
+        final LocalDate date = shown.getDate();
+
+        loader.save(shown).thenApplyAsync(v -> {
             try {
-                return Utils.loadEntry(date);
-            } catch (GeneralSecurityException e) {
-                // This usually occurs when decrypting using an incorrect password.
-                Settings.PASSWORD = getPassword("Invalid password. Please try again.");
-            } catch (IOException e) {
-                ExceptionDialog exceptionDialog = new ExceptionDialog(e);
-                exceptionDialog.showAndWait();
+                return Utils.getRevisions(date);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((revisions, ex) -> Platform.runLater(() -> {
+            if (ex != null) {
+                showException(EntryLoader.unwrap(ex));
+                return;
+            }
 
-                return null;
+            Optional<String> text = new HistoryDialog(date, revisions).showAndWait();
+            if (text.isPresent() && entry == shown) {
+                textArea.setText(text.get());
+                saveEntry();
+            }
+        }));
+    }
+
+    /**
+     * Show the writing statistics as a heatmap of the current year, once the entry being edited
+     * has been saved so that it is counted. Choosing a day displays its entry.
+     */
+    private void showStatistics() {
+        if (!Utils.isUnlocked())
+            Utils.setPassword(getPassword("Please enter your password."));
+        if (entry != null && entry == changedOnDisk && entry.isDirty() && !confirmOverwrite())
+            return;
+        if (entry != null)
+            autosave.stop();
+
+        (entry == null ? CompletableFuture.completedFuture((Void) null) : loader.save(entry))
+            .thenApplyAsync(v -> {
+                try {
+                    return Utils.getStatistics();
+                } catch (IOException | GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            }).whenComplete((statistics, ex) -> Platform.runLater(() -> {
+                Throwable failure = ex == null ? null : EntryLoader.unwrap(ex);
+
+                if (failure instanceof GeneralSecurityException) {
+                    Utils.setPassword(getPassword("Invalid password. Please try again."));
+                    showStatistics();
+                    return;
+                } else if (failure != null) {
+                    showException(failure);
+                    return;
+                }
+
+                new StatisticsDialog(statistics, LocalDate.now()).showAndWait()
+                    .ifPresent(datePicker::setValue);
+            }));
+    }
+
+    /**
+     * Search the diary for the text in the search field and list the matching dates beneath it.
+     * Choosing a date displays its entry.
+     *
+     * @param searchField the field holding the search query
+     */
+    private void search(final TextField searchField) {
+        final String query = searchField.getText();
+
+        if (query.trim().isEmpty())
+            return;
+        if (!Utils.isUnlocked())
+            Utils.setPassword(getPassword("Please enter your password."));
+
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return Utils.getSearchIndex().search(query, 20);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((results, ex) -> Platform.runLater(() -> {
+            Throwable failure = ex == null ? null : EntryLoader.unwrap(ex);
+
+            if (failure instanceof GeneralSecurityException) {
+                Utils.setPassword(getPassword("Invalid password. Please try again."));
+                search(searchField);
+                return;
+            } else if (failure != null) {
+                showException(failure);
+                return;
             }
+
+            ContextMenu menu = new ContextMenu();
+            for (LocalDate date : results) {
+                MenuItem item = new MenuItem(date.toString());
+                item.setOnAction(e -> datePicker.setValue(date));
+                menu.getItems().add(item);
+            }
+            if (results.isEmpty()) {
+                MenuItem none = new MenuItem("No matches");
+                none.setDisable(true);
+                menu.getItems().add(none);
+            }
+            menu.show(searchField, Side.BOTTOM, 0, 0);
+        }));
+    }
+
+    /**
+     * Ask for the current and a new password, then re-encrypt the whole diary with the new one
+     * while showing its progress. If a password change is being resumed, cancelling exits.
+     *
+     * @param message the message to show above the password fields
+     */
+    private void changePassword(final String message) {
+        final boolean resuming = PasswordChange.inProgress();
+        Optional<Pair<String, String>> passwords = new ChangePasswordDialog(message).showAndWait();
+
+        if (!passwords.isPresent()) {
+            if (resuming)
+                exit(0);
+            // Unless the change was abandoned before it started, the editor was emptied for it.
+            else if (entry == null)
+                viewEntry(datePicker.getValue());
+            return;
         }
+
+        final String oldPassword = passwords.get().getKey();
+        final String newPassword = passwords.get().getValue();
+
+        if (!resuming && Utils.isUnlocked() && !Utils.hasPassword(oldPassword)) {
+            changePassword("The current password is incorrect. Please try again.");
+            return;
+        }
+
+        // Nothing may be written with the old password once re-encryption has started.
+        if (entry != null && Utils.isUnlocked() && !saveEntry())
+            return;
+        entry = null;
+        textArea.setDisable(true);
+        prefetcher.cancel();
+        loader.flush();
+        Utils.flush();
+
+        Task<Void> task = new Task<Void>() {
+            @Override protected Void call() throws Exception {
+                PasswordChange.run(oldPassword, newPassword,
+                    (done, total) -> updateProgress(done, total));
+                return null;
+            }
+        };
+
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.setPrefWidth(300);
+        progressBar.progressProperty().bind(task.progressProperty());
+
+        VBox vBox = new VBox(10, new Label("Re-encrypting the diary..."), progressBar);
+        vBox.setPadding(new Insets(20));
+
+        Stage progressStage = new Stage();
+        progressStage.initOwner(this);
+        progressStage.initModality(Modality.APPLICATION_MODAL);
+        progressStage.setOnCloseRequest(Event::consume);
+        progressStage.setTitle("Change Password");
+        progressStage.setScene(new Scene(vBox));
+
+        task.setOnSucceeded(e -> {
+            progressStage.close();
+            Utils.setPassword(newPassword);
+            viewEntry(datePicker.getValue());
+        });
+        task.setOnFailed(e -> {
+            progressStage.close();
+            if (task.getException() instanceof GeneralSecurityException && resuming) {
+                changePassword("These aren't the passwords the interrupted change was started " +
+                    "with. Please try again.");
+            } else if (task.getException() instanceof GeneralSecurityException) {
+                changePassword("The current password is incorrect. Please try again.");
+            } else {
+                showException(task.getException());
+                viewEntry(datePicker.getValue());
+            }
+        });
+
+        new Thread(task, "password-change").start();
+        progressStage.show();
+    }
+
+    private void showException(final Throwable t) {
+        Exception e = t instanceof Exception ? (Exception) t : new Exception(t);
+        ExceptionDialog exceptionDialog = new ExceptionDialog(e);
+        exceptionDialog.showAndWait();
     }
 
     /**
@@ -162,18 +593,37 @@ public class GUI extends Stage {
         PasswordDialog pd = new PasswordDialog(message);
         Optional<String> result;
 
+        long start = System.nanoTime();
         result = pd.showAndWait();
+        Startup.waited(System.nanoTime() - start);
 
         if (result.isPresent())
             return result.get();
-        else
-            // The user clicked cancel.
-            exit(0);
 
-        return null;
+        // The user clicked cancel, but may have chosen to stay and keep an entry's edits.
+        exit(0);
+        return getPassword(message);
+    }
+
+    /**
+     * Finish any outstanding writes and wipe decrypted entries from memory.
+     *
+     * @return false if the user chose to keep editing an entry changed on disk
+     */
+    private boolean shutdown() {
+        if (entry != null && Utils.isUnlocked() && !saveEntry())
+            return false;
+        prefetcher.shutdown();
+        loader.shutdown();
+        Utils.flush();
+        Utils.clearCache();
+
+        return true;
     }
 
     private void exit(int status) {
+        if (!shutdown())
+            return;
         Platform.exit();
         System.exit(status);
     }
@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Keeps every saved version of the diary's entries. Each month has an append-only log in which a
+ * save is recorded as the text that changed since the previous version, so recording a save costs
+ * about as much as the change itself. Every {@link Settings#HISTORY_CHECKPOINT} changes, or when a
+ * change replaces most of an entry, the whole text is recorded instead, so no version takes more
+ * than that many changes to rebuild.
+ * <p>
+ * A log is a sequence of records, each an {@code int} length followed by the day of the month,
+ * whether the record is a full copy or a change, and the version's time and text encrypted with
+ * {@link EntryFormat}. A record left incomplete by a crash is cut off before the next append.
+ * <p>
+ * Each log is locked only while it is read or appended to, so saves in different months don't
+ * wait for each other. Callers must not record two saves of the same date at once.
+ */
+public class History {
+    private static final byte CHECKPOINT = 0;
+    private static final byte DELTA = 1;
+
+    private final Path directory;
+    private final DateLocks locks = new DateLocks(16);
+
+    // The newest version of recently saved entries, so that a save needn't replay the log.
+    private final Map<LocalDate, Latest> latest = new LinkedHashMap<LocalDate, Latest>(16, 0.75f,
+        true) {
+        @Override protected boolean removeEldestEntry(final Map.Entry<LocalDate, Latest> eldest) {
+            return size() > Settings.CACHE_ENTRIES;
+        }
+    };
+    private final Set<YearMonth> checked = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A saved version of an entry.
+     */
+    public static class Revision {
+        private final long time;
+        private final String text;
+
+        Revision(final long time, final String text) {
+            this.time = time;
+            this.text = text;
+        }
+
+        /**
+         * @return when this version was saved, in milliseconds since the epoch, or 0 if it was
+         * saved before history was kept
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static class Latest {
+        final String text;
+        final int deltas;
+
+        Latest(final String text, final int deltas) {
+            this.text = text;
+            this.deltas = deltas;
+        }
+    }
+
+    private static class Record {
+        final int day;
+        final byte kind;
+        final byte[] payload;
+
+        Record(final int day, final byte kind, final byte[] payload) {
+            this.day = day;
+            this.kind = kind;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * A change to a record's encrypted contents, e.g. re-encrypting it with another password.
+     */
+    interface Transform {
+        /**
+         * @return the new contents, or null to keep the old ones
+         */
+        byte[] apply(byte[] payload) throws GeneralSecurityException;
+    }
+
+    /**
+     * @param directory the directory holding the logs
+     */
+    public History(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return whether any version of the entry for the given date has been recorded
+     * @throws IOException
+     * @throws GeneralSecurityException if the log can't be decrypted
+     */
+    public boolean contains(final CryptoEngine engine, final LocalDate date)
+        throws IOException, GeneralSecurityException {
+        return latest(engine, date) != null;
+    }
+
+    /**
+     * Record a new version of an entry, unless it is the same as the newest recorded version.
+     *
+     * @param previous the version being replaced, which is recorded first if the entry has no
+     *                 history yet, or null if there is none
+     * @param text     the new version
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void append(final CryptoEngine engine, final byte[] salt, final LocalDate date,
+        final String previous, final String text) throws IOException, GeneralSecurityException {
+        Latest last = latest(engine, date);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+
+        if (last == null && previous != null) {
+            records.write(record(engine, salt, date, CHECKPOINT, checkpoint(0, previous)));
+            last = new Latest(previous, 0);
+        }
+
+        if (last == null || !last.text.equals(text)) {
+            long now = System.currentTimeMillis();
+            boolean written = false;
+
+            if (last != null && last.deltas < Settings.HISTORY_CHECKPOINT) {
+                int prefix = commonPrefix(last.text, text);
+                int suffix = commonSuffix(last.text, text, prefix);
+                String middle = text.substring(prefix, text.length() - suffix);
+
+                // A change to most of the entry may as well be a full copy.
+                if (middle.length() <= text.length() / 2) {
+                    records.write(record(engine, salt, date, DELTA,
+                        delta(now, prefix, suffix, middle)));
+                    last = new Latest(text, last.deltas + 1);
+                    written = true;
+                }
+            }
+
+            if (!written) {
+                records.write(record(engine, salt, date, CHECKPOINT, checkpoint(now, text)));
+                last = new Latest(text, 0);
+            }
+        }
+
+        if (records.size() == 0)
+            return;
+
+        write(YearMonth.from(date), records.toByteArray());
+        synchronized (latest) {
+            latest.put(date, last);
+        }
+    }
+
+    /**
+     * @return every recorded version of the entry for the given date, oldest first
+     * @throws IOException
+     * @throws GeneralSecurityException if the log can't be decrypted
+     */
+    public List<Revision> revisions(final CryptoEngine engine, final LocalDate date)
+        throws IOException, GeneralSecurityException {
+        List<Revision> revisions = new ArrayList<>();
+        String text = null;
+
+        for (Record record : read(YearMonth.from(date))) {
+            if (record.day != date.getDayOfMonth())
+                continue;
+
+            Revision revision = decode(engine, record, text);
+            revisions.add(revision);
+            text = revision.getText();
+        }
+
+        return revisions;
+    }
+
+    /**
+     * Forget the version of an entry held in memory, so that the log is read again when it is
+     * next needed.
+     */
+    public void forget(final LocalDate date) {
+        synchronized (latest) {
+            latest.remove(date);
+        }
+    }
+
+    /**
+     * Forget the versions held in memory.
+     */
+    public void clear() {
+        synchronized (latest) {
+            latest.clear();
+        }
+    }
+
+    /**
+     * @return the log files, one per month with history
+     * @throws IOException
+     */
+    List<Path> getLogs() throws IOException {
+        List<Path> logs = new ArrayList<>();
+
+        if (!Files.isDirectory(directory))
+            return logs;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().endsWith(".tmp"))
+                    logs.add(path);
+            }
+        }
+        Collections.sort(logs);
+
+        return logs;
+    }
+
+    /**
+     * Replace the contents of every record in a log, e.g. to re-encrypt it. The log is replaced
+     * atomically.
+     *
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void rewrite(final Path log, final Transform transform)
+        throws IOException, GeneralSecurityException {
+        Lock lock = lock(YearMonth.parse(log.getFileName().toString())).writeLock();
+        lock.lock();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            for (Record record : read(log)) {
+                byte[] payload = transform.apply(record.payload);
+                out.write(frame(record.day, record.kind,
+                    payload == null ? record.payload : payload));
+            }
+
+            Utils.writeAtomically(log, out.toByteArray());
+        } finally {
+            lock.unlock();
+        }
+
+        clear();
+    }
+
+    /**
+     * Find the newest version of an entry, replaying its log from the last full copy if it isn't
+     * held in memory.
+     *
+     * @return the newest version, or null if none has been recorded
+     */
+    private Latest latest(final CryptoEngine engine, final LocalDate date)
+        throws IOException, GeneralSecurityException {
+        Latest last;
+        synchronized (latest) {
+            last = latest.get(date);
+        }
+        if (last != null)
+            return last;
+
+        List<Record> records = new ArrayList<>();
+        for (Record record : read(YearMonth.from(date))) {
+            if (record.day != date.getDayOfMonth())
+                continue;
+            if (record.kind == CHECKPOINT)
+                records.clear();
+            records.add(record);
+        }
+
+        String text = null;
+        for (Record record : records)
+            text = decode(engine, record, text).getText();
+
+        if (text == null)
+            return null;
+
+        last = new Latest(text, records.size() - 1);
+        synchronized (latest) {
+            latest.put(date, last);
+        }
+
+        return last;
+    }
+
+    /**
+     * Encrypt a record, which is done before the log is locked.
+     */
+    private static byte[] record(final CryptoEngine engine, final byte[] salt,
+        final LocalDate date, final byte kind, final byte[] plaintext)
+        throws GeneralSecurityException {
+        byte[] payload;
+        try {
+            payload = EntryFormat.encode(engine, salt, Settings.KDF_ITERATIONS, plaintext);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        return frame(date.getDayOfMonth(), kind, payload);
+    }
+
+    private void write(final YearMonth month, final byte[] records) throws IOException {
+        Path log = getLogPath(month);
+        Lock lock = lock(month).writeLock();
+        lock.lock();
+        try {
+            // Cut off a record left incomplete by a crash, or nothing appended after it could be
+            // read.
+            if (checked.add(month) && Files.exists(log)) {
+                long length = validLength(Files.readAllBytes(log));
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    if (channel.size() > length)
+                        channel.truncate(length);
+                }
+            }
+
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(log, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (NoSuchFileException e) {
+                Files.createDirectories(directory);
+                channel = FileChannel.open(log, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Record> read(final YearMonth month) throws IOException {
+        Path log = getLogPath(month);
+        Lock lock = lock(month).readLock();
+        lock.lock();
+        try {
+            return Files.exists(log) ? read(log) : Collections.emptyList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReadWriteLock lock(final YearMonth month) {
+        return locks.get(month.atDay(1));
+    }
+
+    private static List<Record> read(final Path log) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(log));
+        List<Record> records = new ArrayList<>();
+
+        while (buffer.remaining() >= Integer.BYTES) {
+            int length = buffer.getInt();
+            if (length < 2 || length > buffer.remaining())
+                break;
+
+            int day = buffer.get();
+            byte kind = buffer.get();
+            byte[] payload = new byte[length - 2];
+            buffer.get(payload);
+            records.add(new Record(day, kind, payload));
+        }
+
+        return records;
+    }
+
+    /**
+     * @return the length of the complete records at the start of a log
+     */
+    private static long validLength(final byte[] log) {
+        ByteBuffer buffer = ByteBuffer.wrap(log);
+
+        while (buffer.remaining() >= Integer.BYTES) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 2 || length > buffer.remaining() - Integer.BYTES)
+                break;
+            buffer.position(buffer.position() + Integer.BYTES + length);
+        }
+
+        return buffer.position();
+    }
+
+    private static byte[] frame(final int day, final byte kind, final byte[] payload) {
+        return ByteBuffer.allocate(Integer.BYTES + 2 + payload.length)
+            .putInt(2 + payload.length).put((byte) day).put(kind).put(payload).array();
+    }
+
+    /**
+     * Decrypt a record and apply it to the version before it.
+     */
+    private static Revision decode(final CryptoEngine engine, final Record record,
+        final String previous) throws IOException, GeneralSecurityException {
+        byte[] plaintext = EntryFormat.decode(engine, record.payload);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext))) {
+            long time = in.readLong();
+
+            if (record.kind == CHECKPOINT)
+                return new Revision(time, rest(in));
+            if (record.kind != DELTA || previous == null)
+                throw new IOException("The history log is corrupt.");
+
+            int prefix = in.readInt();
+            int suffix = in.readInt();
+            if (prefix < 0 || suffix < 0 || prefix + suffix > previous.length())
+                throw new IOException("The history log is corrupt.");
+
+            return new Revision(time, previous.substring(0, prefix) + rest(in) +
+                previous.substring(previous.length() - suffix));
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    private static String rest(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.available()];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] checkpoint(final long time, final String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(time);
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] delta(final long time, final int prefix, final int suffix,
+        final String middle) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(time);
+        out.writeInt(prefix);
+        out.writeInt(suffix);
+        out.write(middle.getBytes(StandardCharsets.UTF_8));
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the length of the text two strings start with, never splitting a surrogate pair
+     */
+    private static int commonPrefix(final String a, final String b) {
+        int max = Math.min(a.length(), b.length());
+        int prefix = 0;
+
+        while (prefix < max && a.charAt(prefix) == b.charAt(prefix))
+            prefix++;
+        if (prefix > 0 && Character.isHighSurrogate(a.charAt(prefix - 1)))
+            prefix--;
+
+        return prefix;
+    }
+
+    /**
+     * @return the length of the text two strings end with, not overlapping their common prefix
+     * and never splitting a surrogate pair
+     */
+    private static int commonSuffix(final String a, final String b, final int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int suffix = 0;
+
+        while (suffix < max &&
+            a.charAt(a.length() - 1 - suffix) == b.charAt(b.length() - 1 - suffix))
+            suffix++;
+        if (suffix > 0 && Character.isLowSurrogate(b.charAt(b.length() - suffix)))
+            suffix--;
+
+        return suffix;
+    }
+
+    private Path getLogPath(final YearMonth month) {
+        return directory.resolve(month.toString());
+    }
+}
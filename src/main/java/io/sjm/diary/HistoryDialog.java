@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javafx.geometry.Insets;
+import javafx.scene.control.ButtonBar;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.List;
+
+/**
+ * Lists the saved versions of an entry, newest first, and returns the text of the one chosen to
+ * be restored.
+ */
+public class HistoryDialog extends Dialog<String> {
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM).withZone(ZoneId.systemDefault());
+
+    public HistoryDialog(final LocalDate date, final List<History.Revision> revisions) {
+        setTitle("History");
+        setHeaderText(revisions.isEmpty() ? "No earlier versions of " + date + " have been saved." :
+            "Choose a version of " + date + " to restore.");
+        setResizable(true);
+
+        ListView<History.Revision> listView = new ListView<>();
+        for (int i = revisions.size() - 1; i >= 0; i--)
+            listView.getItems().add(revisions.get(i));
+        listView.setPrefWidth(220);
+        listView.setCellFactory(lv -> new ListCell<History.Revision>() {
+            @Override public void updateItem(History.Revision item, boolean empty) {
+                super.updateItem(item, empty);
+
+                if (empty || item == null)
+                    setText(null);
+                else if (item.getTime() == 0)
+                    setText("Before history was kept");
+                else
+                    setText(TIME_FORMAT.format(Instant.ofEpochMilli(item.getTime())));
+            }
+        });
+
+        TextArea textArea = new TextArea();
+        textArea.setEditable(false);
+        textArea.setWrapText(true);
+        textArea.setPrefColumnCount(50);
+        textArea.setPrefRowCount(20);
+
+        listView.getSelectionModel().selectedItemProperty().addListener(
+            (observable, oldItem, newItem) ->
+                textArea.setText(newItem == null ? "" : newItem.getText()));
+        listView.getSelectionModel().selectFirst();
+
+        HBox hBox = new HBox(10, listView, textArea);
+        hBox.setPadding(new Insets(20));
+        HBox.setHgrow(textArea, Priority.ALWAYS);
+
+        ButtonType restore = new ButtonType("Restore", ButtonBar.ButtonData.OK_DONE);
+        getDialogPane().setContent(hBox);
+        getDialogPane().getButtonTypes().addAll(restore, ButtonType.CANCEL);
+        getDialogPane().lookupButton(restore).disableProperty().bind(
+            listView.getSelectionModel().selectedItemProperty().isNull());
+
+        setResultConverter(dialogButton -> {
+            History.Revision selected = listView.getSelectionModel().getSelectedItem();
+            if (dialogButton == restore && selected != null)
+                return selected.getText();
+            return null;
+        });
+    }
+}
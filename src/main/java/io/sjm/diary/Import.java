@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Creates entries in bulk from text kept elsewhere, either a directory of text or Markdown files
+ * with a date in their names, or JSON lines as written by {@link Export}. Entries are encrypted
+ * and written on a pool of threads. Text for the same date from more than one source is joined
+ * into a single entry.
+ */
+public class Import {
+    /**
+     * What to do when the diary already has an entry for a date being imported.
+     */
+    public enum Policy {
+        SKIP, OVERWRITE, APPEND;
+
+        public static Policy parse(final String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown conflict policy " + name + ".");
+            }
+        }
+    }
+
+    private static final Pattern DATED_FILE =
+        Pattern.compile(".*?(\\d{4})-(\\d{2})-(\\d{2}).*\\.(txt|md|markdown)");
+    private static final String SEPARATOR = "\n\n";
+
+    private final Policy policy;
+    private final int threads;
+
+    private final AtomicInteger imported = new AtomicInteger();
+    private final AtomicInteger appended = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * @param policy  what to do with dates that already have an entry
+     * @param threads the number of entries to encrypt at once
+     */
+    public Import(final Policy policy, final int threads) {
+        this.policy = policy;
+        this.threads = threads;
+    }
+
+    /**
+     * Find the text and Markdown files under a directory whose names contain a date, e.g.
+     * {@code 2015-06-21.md} or {@code notes 2015-06-21.txt}. Other files are ignored.
+     *
+     * @return the text for each date, read when it's imported
+     * @throws IOException
+     */
+    public static SortedMap<LocalDate, Callable<String>> findFiles(final Path dir)
+        throws IOException {
+        SortedMap<LocalDate, List<Path>> files = new TreeMap<>();
+
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted()::iterator) {
+                Matcher matcher = DATED_FILE.matcher(path.getFileName().toString());
+                if (!matcher.matches() || !Files.isRegularFile(path))
+                    continue;
+
+                try {
+                    LocalDate date = LocalDate.of(Integer.parseInt(matcher.group(1)),
+                        Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+                    files.computeIfAbsent(date, d -> new ArrayList<>()).add(path);
+                } catch (DateTimeException e) {
+                    // Not a real date.
+                }
+            }
+        }
+
+        SortedMap<LocalDate, Callable<String>> sources = new TreeMap<>();
+        for (Map.Entry<LocalDate, List<Path>> e : files.entrySet()) {
+            sources.put(e.getKey(), () -> {
+                StringBuilder text = new StringBuilder();
+                for (Path path : e.getValue()) {
+                    if (text.length() > 0)
+                        text.append(SEPARATOR);
+                    text.append(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+                }
+                return text.toString();
+            });
+        }
+
+        return sources;
+    }
+
+    /**
+     * Read entries from JSON lines, one {@code {"date":...,"entry":...}} object per line.
+     *
+     * @return the text for each date
+     * @throws IOException
+     * @throws org.json.JSONException if a line isn't an entry
+     */
+    public static SortedMap<LocalDate, Callable<String>> readJSONLines(final BufferedReader in)
+        throws IOException {
+        SortedMap<LocalDate, StringBuilder> texts = new TreeMap<>();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+
+            Entry entry = EntryCodec.decode(line.getBytes(StandardCharsets.UTF_8));
+            StringBuilder text = texts.get(entry.getDate());
+            if (text == null)
+                texts.put(entry.getDate(), new StringBuilder(entry.getText()));
+            else
+                text.append(SEPARATOR).append(entry.getText());
+        }
+
+        SortedMap<LocalDate, Callable<String>> sources = new TreeMap<>();
+        for (Map.Entry<LocalDate, StringBuilder> e : texts.entrySet()) {
+            String text = e.getValue().toString();
+            sources.put(e.getKey(), () -> text);
+        }
+
+        return sources;
+    }
+
+    /**
+     * Import an entry for each date.
+     *
+     * @param sources  the text for each date
+     * @param progress called with the number of dates done and the total number of dates
+     * @throws IOException
+     * @throws GeneralSecurityException if an existing entry can't be decrypted to append to it
+     */
+    public void run(final SortedMap<LocalDate, Callable<String>> sources,
+        final BiConsumer<Integer, Integer> progress) throws IOException, GeneralSecurityException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "import");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger done = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (Map.Entry<LocalDate, Callable<String>> e : sources.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    importEntry(e.getKey(), e.getValue().call());
+                    progress.accept(done.incrementAndGet(), sources.size());
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void importEntry(final LocalDate date, final String text)
+        throws IOException, GeneralSecurityException {
+        String merged = text;
+
+        if (Utils.entryExists(date)) {
+            if (policy == Policy.SKIP) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            if (policy == Policy.APPEND) {
+                String existing = Utils.readEntry(date).getText();
+                if (!existing.isEmpty())
+                    merged = existing + SEPARATOR + text;
+                appended.incrementAndGet();
+            } else {
+                imported.incrementAndGet();
+            }
+        } else {
+            imported.incrementAndGet();
+        }
+
+        Utils.saveEntry(new Entry(date, merged));
+    }
+
+    /**
+     * @return the number of entries created or overwritten
+     */
+    public int getImported() {
+        return imported.get();
+    }
+
+    /**
+     * @return the number of existing entries appended to
+     */
+    public int getAppended() {
+        return appended.get();
+    }
+
+    /**
+     * @return the number of dates skipped because they already had an entry
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+}
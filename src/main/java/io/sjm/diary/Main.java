@@ -17,15 +17,17 @@
 package io.sjm.diary;
 
 import javafx.application.Application;
-import javafx.stage.Stage;
 
-public class Main extends Application {
+/**
+ * Starts the GUI, or runs a {@link CommandLine} command if one is given. This class mustn't extend
+ * {@link Application} itself, since the Java launcher starts JavaFX before calling {@code main}
+ * for one that does, and that fails on a machine without a display.
+ */
+public class Main {
     public static void main(String[] args) {
-        launch(args);
-    }
+        if (CommandLine.isCommand(args))
+            System.exit(CommandLine.run(args));
 
-    @Override public void start(Stage primaryStage) throws Exception {
-        GUI gui = new GUI();
-        gui.show();
+        Application.launch(DiaryApplication.class, args);
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import jdk.jfr.FlightRecorder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the life of the process, so the distribution of load and
+ * save times in real use can be examined from the Diagnostics dialog or dumped to a file.
+ */
+public class Metrics {
+    private static final ConcurrentMap<String, LongAdder> counters =
+        new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms =
+        new ConcurrentSkipListMap<>();
+
+    /**
+     * Records durations in buckets that are a quarter of a power of two wide, so any percentile is
+     * accurate to within about 20% however long the durations are.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param nanos a duration in nanoseconds
+         */
+        public void record(final long nanos) {
+            long value = Math.max(nanos, 1);
+
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            total.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / n;
+        }
+
+        /**
+         * @param fraction the fraction of durations that should be no longer than the result,
+         *                 e.g. 0.99
+         * @return the duration in nanoseconds, rounded up to the top of its bucket
+         */
+        public long getPercentile(final double fraction) {
+            long n = count.sum();
+            if (n == 0)
+                return 0;
+
+            long target = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target)
+                    return Math.min(upperBound(i), getMax());
+            }
+
+            return getMax();
+        }
+
+        private static int bucket(final long value) {
+            int log = 63 - Long.numberOfLeadingZeros(value);
+            if (log < 2)
+                return (int) value;
+
+            return log * SUB_BUCKETS + (int) (value >> (log - 2) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(final int bucket) {
+            int log = bucket / SUB_BUCKETS;
+            if (log < 2)
+                return bucket;
+
+            return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (log - 2)) - 1;
+        }
+    }
+
+    /**
+     * Times one stage of work, recording its duration in the histogram named after the stage and
+     * as a {@link StageEvent} if a flight recording is running.
+     */
+    public static class Timer implements AutoCloseable {
+        private final StageEvent event = isRecording() ? new StageEvent() : null;
+        private final String stage;
+        private final LocalDate date;
+        private final long start = System.nanoTime();
+        private long bytes = -1;
+
+        private Timer(final String stage, final LocalDate date) {
+            this.stage = stage;
+            this.date = date;
+            if (event != null)
+                event.begin();
+        }
+
+        /**
+         * @param bytes the size of the data handled by the stage
+         */
+        public void bytes(final long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override public void close() {
+            histogram(stage).record(System.nanoTime() - start);
+            if (bytes >= 0)
+                counter(stage + ".bytes").add(bytes);
+
+            if (event == null)
+                return;
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage;
+                event.date = date == null ? null : date.toString();
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Start timing a stage of work, e.g. {@code try (Metrics.Timer t = Metrics.start("read",
+     * date)) { ... }}.
+     *
+     * @param stage the name of the stage
+     * @param date  the date of the entry being worked on, or null if there isn't one
+     */
+    public static Timer start(final String stage, final LocalDate date) {
+        return new Timer(stage, date);
+    }
+
+    /**
+     * Whether the flight recorder has been started, in which case events should be created. The
+     * first event created costs a few hundred milliseconds, so this keeps that cost out of
+     * processes that never record.
+     */
+    public static boolean isRecording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    public static LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public static Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * @return a table of every counter and histogram
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+
+        report.append(String.format("%-24s %8s %10s %10s %10s %10s%n", "Latency (ms)", "Count",
+            "Mean", "p50", "p99", "Max"));
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            report.append(String.format("%-24s %8d %10.3f %10.3f %10.3f %10.3f%n", e.getKey(),
+                h.getCount(), h.getMean() / 1e6, h.getPercentile(0.5) / 1e6,
+                h.getPercentile(0.99) / 1e6, h.getMax() / 1e6));
+        }
+
+        report.append(String.format("%n%-24s %12s%n", "Counter", "Value"));
+        for (Map.Entry<String, LongAdder> e : counters.entrySet())
+            report.append(String.format("%-24s %12d%n", e.getKey(), e.getValue().sum()));
+
+        return report.toString();
+    }
+
+    /**
+     * Write the current {@link #report()} to a file.
+     *
+     * @throws IOException
+     */
+    public static void dump(final Path path) throws IOException {
+        String report = "Diary metrics at " + LocalDateTime.now() + System.lineSeparator() +
+            System.lineSeparator() + report();
+
+        Files.write(path, report.getBytes(StandardCharsets.UTF_8));
+    }
+}
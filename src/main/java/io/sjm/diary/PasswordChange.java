@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Re-encrypts the whole diary with a new password. Entries are re-encrypted in parallel and each
+ * is replaced atomically. A journal in the diary directory records that a change is under way and
+ * which entries are done, so an interrupted change can be resumed with the same two passwords.
+ */
+public class PasswordChange {
+    private static final String JOURNAL_HEADER = "password change started ";
+
+    /**
+     * @return whether a password change was started but hasn't finished
+     */
+    public static boolean inProgress() {
+        return inProgress(Utils.getStore());
+    }
+
+    static boolean inProgress(final DiaryStore store) {
+        return Files.exists(getJournalPath(store));
+    }
+
+    /**
+     * Re-encrypt every entry, the search index, the statistics and the revision history from the
+     * old password to the new one. If a previous change was interrupted, only the entries it
+     * didn't finish are re-encrypted, and only if the passwords are the ones it was started with.
+     * Nothing else is written to the diary until the change is done, and the diary is then
+     * unlocked with the new password.
+     *
+     * @param oldPassword the password the diary is currently encrypted with
+     * @param newPassword the password to encrypt it with
+     * @param progress    called with the number of entries done and the total number of entries
+     * @throws IOException
+     * @throws GeneralSecurityException if either password is wrong
+     */
+    public static void run(final String oldPassword, final String newPassword,
+        final BiConsumer<Integer, Integer> progress) throws IOException, GeneralSecurityException {
+        run(Utils.getStore(), oldPassword, newPassword, progress);
+    }
+
+    static void run(final DiaryStore store, final String oldPassword, final String newPassword,
+        final BiConsumer<Integer, Integer> progress) throws IOException, GeneralSecurityException {
+        store.changePassword(newPassword, () -> reencryptAll(store, oldPassword, newPassword,
+            progress));
+    }
+
+    private static void reencryptAll(final DiaryStore store, final String oldPassword,
+        final String newPassword, final BiConsumer<Integer, Integer> progress)
+        throws IOException, GeneralSecurityException {
+        CryptoEngine oldEngine = new CryptoEngine(oldPassword);
+        CryptoEngine newEngine = new CryptoEngine(newPassword);
+        byte[] salt = store.getSalt();
+
+        Set<String> done = readJournal(store);
+        SortedMap<LocalDate, Long> entries = store.listEntries();
+        List<LocalDate> remaining = new ArrayList<>();
+        for (LocalDate date : entries.keySet()) {
+            if (!done.contains(date.toString()))
+                remaining.add(date);
+        }
+
+        int total = done.size() + remaining.size();
+        AtomicInteger completed = new AtomicInteger(done.size());
+        progress.accept(completed.get(), total);
+
+        Storage storage = store.getStorage();
+
+        // Check both passwords before anything is changed, so that a mistyped password can't
+        // leave entries encrypted with more than one key.
+        for (LocalDate date : entries.keySet()) {
+            if (done.contains(date.toString())) {
+                verify(newEngine, storage.read(date));
+                break;
+            }
+        }
+        for (LocalDate date : remaining) {
+            byte[] encoded = storage.read(date);
+            // It may have been replaced before an interrupted change could record it.
+            if (!isEncryptedWith(newEngine, encoded)) {
+                verify(oldEngine, encoded);
+                break;
+            }
+        }
+
+        // The journal must be on disk before any entry is, or after a crash there would be no
+        // sign that some entries use the new password.
+        Path journalPath = getJournalPath(store);
+        boolean created = !Files.exists(journalPath);
+        try (FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (done.isEmpty())
+                record(journal, JOURNAL_HEADER + Instant.now());
+            if (created)
+                Utils.forceDirectory(journalPath.getParent());
+
+            try {
+                remaining.parallelStream().forEach(date -> {
+                    try {
+                        store.rewrite(date, encoded -> {
+                            // Only the authenticated format rejects a wrong password reliably.
+                            if (!EntryFormat.isCurrent(encoded))
+                                verify(oldEngine, encoded);
+                            return reencrypt(encoded, oldEngine, newEngine, salt);
+                        });
+                        record(journal, date.toString());
+                        progress.accept(completed.incrementAndGet(), total);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (IllegalStateException e) {
+                // A stream rethrows a worker's exception wrapped in another of the same type.
+                for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                    if (cause instanceof GeneralSecurityException)
+                        throw (GeneralSecurityException) cause;
+                }
+                throw e;
+            }
+
+            for (Path sidecar : Arrays.asList(store.getSearchIndexPath(),
+                store.getStatisticsPath())) {
+                String name = sidecar.getFileName().toString();
+                if (!done.contains(name) && Files.exists(sidecar)) {
+                    byte[] encoded =
+                        reencrypt(Files.readAllBytes(sidecar), oldEngine, newEngine, salt);
+                    if (encoded != null)
+                        Utils.writeAtomically(sidecar, encoded);
+                    record(journal, name);
+                }
+            }
+
+            History history = store.getHistory();
+            for (Path log : history.getLogs()) {
+                String name = Settings.HISTORYDIR + "/" + log.getFileName();
+                if (!done.contains(name)) {
+                    history.rewrite(log, payload -> reencrypt(payload, oldEngine, newEngine, salt));
+                    record(journal, name);
+                }
+            }
+        }
+
+        Files.delete(journalPath);
+    }
+
+    /**
+     * Check that an entry file decrypts to a well formed entry with the given password. A wrong
+     * password occasionally gets through the padding of the old format, so the plaintext is
+     * parsed too.
+     *
+     * @throws GeneralSecurityException if the password is wrong
+     */
+    private static void verify(final CryptoEngine engine, final byte[] encoded)
+        throws GeneralSecurityException {
+        byte[] plaintext = EntryFormat.decode(engine, encoded);
+
+        try {
+            EntryCodec.decode(plaintext);
+        } catch (RuntimeException e) {
+            throw new GeneralSecurityException("The entry doesn't decrypt to an entry.", e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    private static boolean isEncryptedWith(final CryptoEngine engine, final byte[] encoded) {
+        try {
+            verify(engine, encoded);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Re-encrypt the contents of a single file with the new password.
+     *
+     * @return the re-encrypted contents, or null if they already use the new password
+     */
+    private static byte[] reencrypt(final byte[] encoded, final CryptoEngine oldEngine,
+        final CryptoEngine newEngine, final byte[] salt) throws GeneralSecurityException {
+        // A file from an interrupted run may have been replaced before it was recorded. Only the
+        // authenticated format can be trusted to reject the wrong password, so old format files
+        // are always decrypted with the old password.
+        if (EntryFormat.isCurrent(encoded)) {
+            try {
+                EntryFormat.decode(newEngine, encoded);
+                return null;
+            } catch (GeneralSecurityException e) {
+                // Not yet re-encrypted.
+            }
+        }
+
+        byte[] plaintext = EntryFormat.decode(oldEngine, encoded);
+
+        return EntryFormat.encode(newEngine, salt, Settings.KDF_ITERATIONS, plaintext);
+    }
+
+    private static Set<String> readJournal(final DiaryStore store) throws IOException {
+        Set<String> done = new HashSet<>();
+        Path journal = getJournalPath(store);
+
+        if (Files.exists(journal)) {
+            for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                if (!line.startsWith(JOURNAL_HEADER))
+                    done.add(line.trim());
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Append a line to the journal and force it to disk.
+     */
+    private static void record(final FileChannel journal, final String line) {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+
+        synchronized (journal) {
+            try {
+                while (buffer.hasRemaining())
+                    journal.write(buffer);
+                journal.force(true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static Path getJournalPath(final DiaryStore store) {
+        return store.getRoot().resolve(Settings.JOURNALFILE);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the entries the user is likely to look at next into the entry cache, so that moving to
+ * the previous or next day, or to another day of the same month, doesn't wait on the disk.
+ * Prefetching happens on a single low priority thread and is abandoned as soon as the user moves
+ * somewhere else.
+ */
+public class Prefetcher {
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "prefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Start prefetching the entries around the given date, abandoning any earlier prefetching.
+     *
+     * @param date the date currently being displayed
+     */
+    public void prefetch(final LocalDate date) {
+        cancel();
+
+        for (LocalDate candidate : candidates(date))
+            executor.execute(() -> load(candidate));
+    }
+
+    /**
+     * Drop any prefetching that hasn't started yet, e.g. because a foreground load is about to
+     * begin.
+     */
+    public void cancel() {
+        executor.getQueue().clear();
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the dates worth prefetching after the given date, most likely first
+     */
+    private static List<LocalDate> candidates(final LocalDate date) {
+        List<LocalDate> dates = new ArrayList<>();
+        YearMonth month = YearMonth.from(date);
+
+        dates.add(date.plusDays(1));
+        dates.add(date.minusDays(1));
+
+        // Work outwards through the month so that the nearest days are ready first.
+        if (Settings.PREFETCH_MONTH) {
+            for (int distance = 2; distance < month.lengthOfMonth(); distance++) {
+                LocalDate later = date.plusDays(distance);
+                LocalDate earlier = date.minusDays(distance);
+
+                if (YearMonth.from(later).equals(month))
+                    dates.add(later);
+                if (YearMonth.from(earlier).equals(month))
+                    dates.add(earlier);
+            }
+        }
+
+        dates.removeIf(d -> !Utils.entryExists(d) || Utils.isCached(d));
+
+        return dates.size() > Settings.PREFETCH_LIMIT ?
+            dates.subList(0, Settings.PREFETCH_LIMIT) : dates;
+    }
+
+    private static void load(final LocalDate date) {
+        // Never prompt for a password on behalf of a prefetch.
+        if (!Utils.isUnlocked() || Utils.isCached(date))
+            return;
+
+        try {
+            Utils.loadEntry(date);
+        } catch (IOException | GeneralSecurityException e) {
+            // The foreground load reports any problem if the user actually visits this date.
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index over the text of diary entries, mapping each word to the dates whose entries
+ * contain it and the positions it occurs at. Searches are answered entirely from the index, so no
+ * entries need to be decrypted to find matches.
+ */
+public class SearchIndex {
+    private static final int VERSION = 1;
+
+    // Parameters of the BM25 ranking function.
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Map<String, Map<LocalDate, int[]>> postings = new HashMap<>();
+    private final Map<LocalDate, Document> documents = new HashMap<>();
+    private long totalLength;
+
+    /**
+     * The indexed form of a single entry.
+     */
+    public static class Document {
+        final LocalDate date;
+        final long modified;
+        final int length;
+        final Map<String, int[]> positions;
+
+        /**
+         * @param entry    the entry to index
+         * @param modified when the entry was last written, used to detect stale documents
+         */
+        public Document(final Entry entry, final long modified) {
+            this.date = entry.getDate();
+            this.modified = modified;
+
+            List<String> tokens = tokenize(entry.getText());
+            Map<String, List<Integer>> found = new HashMap<>();
+            for (int i = 0; i < tokens.size(); i++)
+                found.computeIfAbsent(tokens.get(i), t -> new ArrayList<>()).add(i);
+
+            this.length = tokens.size();
+            this.positions = new HashMap<>(found.size() * 2);
+            for (Map.Entry<String, List<Integer>> e : found.entrySet())
+                positions.put(e.getKey(), e.getValue().stream().mapToInt(i -> i).toArray());
+        }
+
+        private Document(final LocalDate date, final long modified, final int length) {
+            this.date = date;
+            this.modified = modified;
+            this.length = length;
+            this.positions = new HashMap<>();
+        }
+    }
+
+    /**
+     * Add or replace the document for an entry.
+     */
+    public synchronized void put(final Document document) {
+        remove(document.date);
+
+        documents.put(document.date, document);
+        totalLength += document.length;
+
+        for (Map.Entry<String, int[]> e : document.positions.entrySet())
+            postings.computeIfAbsent(e.getKey(), t -> new HashMap<>()).put(document.date,
+                e.getValue());
+    }
+
+    public synchronized void remove(final LocalDate date) {
+        Document document = documents.remove(date);
+
+        if (document == null)
+            return;
+
+        totalLength -= document.length;
+
+        for (String term : document.positions.keySet()) {
+            Map<LocalDate, int[]> dates = postings.get(term);
+            dates.remove(date);
+            if (dates.isEmpty())
+                postings.remove(term);
+        }
+    }
+
+    /**
+     * @return when the indexed copy of an entry was written, or -1 if it isn't indexed
+     */
+    public synchronized long modified(final LocalDate date) {
+        Document document = documents.get(date);
+
+        return document == null ? -1 : document.modified;
+    }
+
+    public synchronized Set<LocalDate> dates() {
+        return new HashSet<>(documents.keySet());
+    }
+
+    /**
+     * Find the entries containing every word of the query, best matches first. Entries containing
+     * the words as a phrase rank above those that merely contain them all.
+     *
+     * @param query the words to search for
+     * @param limit the maximum number of results
+     * @return the dates of the matching entries
+     */
+    public synchronized List<LocalDate> search(final String query, final int limit) {
+        List<String> terms = tokenize(query);
+
+        if (terms.isEmpty() || documents.isEmpty())
+            return Collections.emptyList();
+
+        List<Map<LocalDate, int[]>> matches = new ArrayList<>();
+        for (String term : terms) {
+            Map<LocalDate, int[]> dates = postings.get(term);
+            if (dates == null)
+                return Collections.emptyList();
+            matches.add(dates);
+        }
+
+        // Start from the rarest term, since no result can match fewer dates than it does.
+        Map<LocalDate, int[]> rarest = Collections.min(matches, Comparator.comparingInt(Map::size));
+        double averageLength = (double) totalLength / documents.size();
+        Map<LocalDate, Double> scores = new HashMap<>();
+
+        candidates:
+        for (LocalDate date : rarest.keySet()) {
+            double score = 0;
+
+            for (Map<LocalDate, int[]> dates : matches) {
+                int[] positions = dates.get(date);
+                if (positions == null)
+                    continue candidates;
+
+                double idf = Math.log(1 + (documents.size() - dates.size() + 0.5) /
+                    (dates.size() + 0.5));
+                double tf = positions.length;
+                double norm = 1 - B + B * documents.get(date).length / averageLength;
+                score += idf * tf * (K1 + 1) / (tf + K1 * norm);
+            }
+
+            if (terms.size() > 1 && containsPhrase(date, matches))
+                score *= 2;
+
+            scores.put(date, score);
+        }
+
+        List<LocalDate> results = new ArrayList<>(scores.keySet());
+        results.sort(Comparator.comparing((LocalDate d) -> scores.get(d)).reversed()
+            .thenComparing(Comparator.reverseOrder()));
+
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    private static boolean containsPhrase(final LocalDate date,
+        final List<Map<LocalDate, int[]>> matches) {
+        for (int start : matches.get(0).get(date)) {
+            boolean found = true;
+
+            for (int i = 1; i < matches.size() && found; i++)
+                found = Arrays.binarySearch(matches.get(i).get(date), start + i) >= 0;
+
+            if (found)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Split text into lower case words.
+     */
+    public static List<String> tokenize(final String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+
+        return tokens;
+    }
+
+    public synchronized byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(VERSION);
+
+        out.writeInt(documents.size());
+        for (Document document : documents.values()) {
+            out.writeLong(document.date.toEpochDay());
+            out.writeLong(document.modified);
+            out.writeInt(document.length);
+        }
+
+        out.writeInt(postings.size());
+        for (Map.Entry<String, Map<LocalDate, int[]>> term : postings.entrySet()) {
+            out.writeUTF(term.getKey());
+            out.writeInt(term.getValue().size());
+
+            for (Map.Entry<LocalDate, int[]> dates : term.getValue().entrySet()) {
+                out.writeLong(dates.getKey().toEpochDay());
+                out.writeInt(dates.getValue().length);
+
+                // Positions are ascending, so store the gaps between them.
+                int previous = 0;
+                for (int position : dates.getValue()) {
+                    out.writeInt(position - previous);
+                    previous = position;
+                }
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static SearchIndex fromBytes(final byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        SearchIndex index = new SearchIndex();
+
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported search index version " + version + ".");
+
+        int documentCount = in.readInt();
+        Map<LocalDate, Document> documents = new LinkedHashMap<>(documentCount * 2);
+        for (int i = 0; i < documentCount; i++) {
+            LocalDate date = LocalDate.ofEpochDay(in.readLong());
+            documents.put(date, new Document(date, in.readLong(), in.readInt()));
+        }
+
+        int termCount = in.readInt();
+        for (int i = 0; i < termCount; i++) {
+            String term = in.readUTF();
+            int dateCount = in.readInt();
+
+            for (int j = 0; j < dateCount; j++) {
+                LocalDate date = LocalDate.ofEpochDay(in.readLong());
+                int[] positions = new int[in.readInt()];
+
+                int previous = 0;
+                for (int k = 0; k < positions.length; k++) {
+                    previous += in.readInt();
+                    positions[k] = previous;
+                }
+
+                documents.get(date).positions.put(term, positions);
+            }
+        }
+
+        for (Document document : documents.values())
+            index.put(document);
+
+        return index;
+    }
+}
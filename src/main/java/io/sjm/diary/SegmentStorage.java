@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores a whole year of entries in a single segment file, e.g. {@code ~/diary/2015.seg}.
+ * <p>
+ * A segment starts with a fixed size table of one slot per day of the year, each holding the
+ * offset, length and modification time of that day's entry. Entries are appended after the table
+ * and the slot is then updated to point at them, so a crash part way through a write leaves the
+ * previous version in place. Replaced entries leave garbage behind, which is removed by
+ * compacting the segment in the background once it makes up more than half of the file.
+ * <p>
+ * Reads go through a memory mapping of the segment, so reading many entries from the same year
+ * is a sequential pass over one file.
+ */
+public class SegmentStorage implements Storage {
+    static final String EXTENSION = ".seg";
+
+    private static final byte[] MAGIC = {'D', 'S', 'E', 'G'};
+    private static final int VERSION = 1;
+    private static final int SLOTS = 366;
+    private static final int SLOT_SIZE = 8 + 4 + 8;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + SLOTS * SLOT_SIZE;
+
+    // Don't bother compacting until there is at least this much garbage.
+    private static final long MIN_GARBAGE = 64 * 1024;
+
+    private final Path root;
+    private final Map<Integer, Segment> segments = new HashMap<>();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "segment-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Thrown by a segment that was closed after it was looked up, because it was deleted or the
+     * storage was closed. The caller looks the segment up again.
+     */
+    private static class ClosedSegmentException extends IOException {
+    }
+
+    /**
+     * Something to do with a segment.
+     */
+    private interface Operation<T> {
+        T apply(Segment segment) throws IOException;
+    }
+
+    public SegmentStorage(final Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @return whether the given diary directory holds any segment files
+     */
+    public static boolean isPresent(final Path root) {
+        return !years(root).isEmpty();
+    }
+
+    @Override public byte[] read(final LocalDate date) throws IOException {
+        byte[] bytes = withSegment(date.getYear(), false, segment -> segment.read(slot(date)));
+        if (bytes == null)
+            throw new NoSuchFileException(date.toString());
+
+        return bytes;
+    }
+
+    @Override public long write(final LocalDate date, final byte[] bytes) throws IOException {
+        return withSegment(date.getYear(), true, segment -> segment.write(slot(date), bytes));
+    }
+
+    @Override public void delete(final LocalDate date) throws IOException {
+        withSegment(date.getYear(), false, segment -> {
+            // Forget the segment once it's deleted. Anyone already holding it is turned away by
+            // ClosedSegmentException and looks it up again.
+            if (segment.delete(slot(date))) {
+                synchronized (this) {
+                    segments.remove(date.getYear(), segment);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override public int scanMonth(final YearMonth month) throws IOException {
+        Integer mask = withSegment(month.getYear(), false, segment -> {
+            int days = 0;
+            for (int day = 1; day <= month.lengthOfMonth(); day++) {
+                if (segment.length(slot(month.atDay(day))) > 0)
+                    days |= 1 << (day - 1);
+            }
+            return days;
+        });
+
+        return mask == null ? 0 : mask;
+    }
+
+    @Override public SortedMap<LocalDate, Long> list() throws IOException {
+        SortedMap<LocalDate, Long> entries = new TreeMap<>();
+
+        for (int year : years(root)) {
+            SortedMap<LocalDate, Long> listed = withSegment(year, false, segment -> {
+                SortedMap<LocalDate, Long> days = new TreeMap<>();
+                for (int slot = 0; slot < Year.of(year).length(); slot++) {
+                    if (segment.length(slot) > 0)
+                        days.put(LocalDate.ofYearDay(year, slot + 1), segment.modified(slot));
+                }
+                return days;
+            });
+
+            if (listed != null)
+                entries.putAll(listed);
+        }
+
+        return entries;
+    }
+
+    @Override public void scan(final Collection<LocalDate> dates, final EntryConsumer consumer)
+        throws IOException {
+        Map<Integer, List<LocalDate>> byYear = new TreeMap<>();
+        for (LocalDate date : dates)
+            byYear.computeIfAbsent(date.getYear(), y -> new ArrayList<>()).add(date);
+
+        for (Map.Entry<Integer, List<LocalDate>> year : byYear.entrySet()) {
+            // Visit the entries in the order they are laid out in the file.
+            Map<LocalDate, Long> offsets = withSegment(year.getKey(), false, segment -> {
+                Map<LocalDate, Long> positions = new HashMap<>();
+                for (LocalDate date : year.getValue())
+                    positions.put(date, segment.offset(slot(date)));
+                return positions;
+            });
+            if (offsets == null)
+                throw new NoSuchFileException(segmentPath(year.getKey()).toString());
+
+            List<LocalDate> ordered = year.getValue();
+            ordered.sort((a, b) -> Long.compare(offsets.get(a), offsets.get(b)));
+
+            for (LocalDate date : ordered)
+                consumer.accept(date, read(date));
+        }
+    }
+
+    /**
+     * Close every open segment file.
+     */
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values())
+            segment.close();
+        segments.clear();
+    }
+
+    /**
+     * Apply an operation to a year's segment, looking the segment up again if it is closed before
+     * the operation gets to it.
+     *
+     * @param create whether to create the segment if it doesn't exist
+     * @return the result of the operation, or null if there is no segment for the year
+     * @throws IOException
+     */
+    private <T> T withSegment(final int year, final boolean create, final Operation<T> operation)
+        throws IOException {
+        while (true) {
+            Segment segment = segment(year, create);
+            if (segment == null)
+                return null;
+
+            try {
+                return operation.apply(segment);
+            } catch (ClosedSegmentException e) {
+                synchronized (this) {
+                    segments.remove(year, segment);
+                }
+            }
+        }
+    }
+
+    private synchronized Segment segment(final int year, final boolean create)
+        throws IOException {
+        Segment segment = segments.get(year);
+
+        if (segment == null) {
+            Path path = segmentPath(year);
+            if (!create && !Files.exists(path))
+                return null;
+
+            segment = new Segment(path);
+            segments.put(year, segment);
+        }
+
+        return segment;
+    }
+
+    private Path segmentPath(final int year) {
+        return root.resolve(year + EXTENSION);
+    }
+
+    private static int slot(final LocalDate date) {
+        return date.getDayOfYear() - 1;
+    }
+
+    private static List<Integer> years(final Path root) {
+        List<Integer> years = new ArrayList<>();
+
+        if (!Files.isDirectory(root))
+            return years;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + EXTENSION)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    years.add(Integer.parseInt(name.substring(0, name.length() -
+                        EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        years.sort(null);
+        return years;
+    }
+
+    /**
+     * A single year's segment file.
+     */
+    private class Segment {
+        private final Path path;
+
+        private FileChannel channel;
+        private MappedByteBuffer map;
+        private long garbage;
+        private boolean compacting;
+        private boolean closed;
+
+        Segment(final Path path) throws IOException {
+            this.path = path;
+
+            open();
+        }
+
+        private void open() throws IOException {
+            Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).putInt(VERSION).rewind();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+
+            try {
+                map = null;
+                if (channel.size() < HEADER_SIZE)
+                    throw new IOException(path + " is not a segment file.");
+
+                MappedByteBuffer view = view();
+                for (int i = 0; i < MAGIC.length; i++) {
+                    if (view.get(i) != MAGIC[i])
+                        throw new IOException(path + " is not a segment file.");
+                }
+                if (view.getInt(MAGIC.length) != VERSION)
+                    throw new IOException(path + " has an unsupported segment version.");
+
+                long live = 0;
+                for (int slot = 0; slot < SLOTS; slot++)
+                    live += length(slot);
+                garbage = channel.size() - HEADER_SIZE - live;
+            } catch (IOException e) {
+                closeChannel();
+                throw e;
+            }
+        }
+
+        /**
+         * @return a mapping of the whole file, remapped if the file has grown since last time
+         * @throws ClosedSegmentException if the segment has been closed
+         */
+        private MappedByteBuffer view() throws IOException {
+            if (closed)
+                throw new ClosedSegmentException();
+
+            long size = channel.size();
+
+            if (map == null || map.capacity() < size)
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            return map;
+        }
+
+        synchronized long offset(final int slot) throws IOException {
+            return view().getLong(slotPosition(slot));
+        }
+
+        synchronized int length(final int slot) throws IOException {
+            return view().getInt(slotPosition(slot) + 8);
+        }
+
+        synchronized long modified(final int slot) throws IOException {
+            return view().getLong(slotPosition(slot) + 12);
+        }
+
+        /**
+         * @return the bytes stored in a slot, or null if it is empty
+         */
+        synchronized byte[] read(final int slot) throws IOException {
+            int length = length(slot);
+            if (length == 0)
+                return null;
+
+            byte[] bytes = new byte[length];
+            ByteBuffer view = view().duplicate();
+            view.position((int) offset(slot));
+            view.get(bytes);
+
+            return bytes;
+        }
+
+        synchronized long write(final int slot, final byte[] bytes) throws IOException {
+            if (closed)
+                throw new ClosedSegmentException();
+
+            long offset = channel.size();
+            long modified = System.currentTimeMillis();
+
+            // Make sure the data is on disk before the slot points at it.
+            writeFully(ByteBuffer.wrap(bytes), offset);
+            channel.force(false);
+
+            garbage += length(slot);
+            updateSlot(slot, offset, bytes.length, modified);
+            maybeCompact();
+
+            return modified;
+        }
+
+        /**
+         * @return whether the segment is now empty and has been deleted
+         */
+        synchronized boolean delete(final int slot) throws IOException {
+            int length = length(slot);
+            if (length == 0)
+                return false;
+
+            garbage += length;
+            updateSlot(slot, 0, 0, System.currentTimeMillis());
+
+            if (channel.size() - HEADER_SIZE == garbage) {
+                // Nothing is left in this segment.
+                close();
+                Files.delete(path);
+                return true;
+            }
+
+            maybeCompact();
+            return false;
+        }
+
+        private void updateSlot(final int slot, final long offset, final int length,
+            final long modified) throws IOException {
+            ByteBuffer entry = ByteBuffer.allocate(SLOT_SIZE);
+            entry.putLong(offset).putInt(length).putLong(modified).flip();
+            writeFully(entry, slotPosition(slot));
+            channel.force(false);
+        }
+
+        private void maybeCompact() throws IOException {
+            long live = channel.size() - HEADER_SIZE - garbage;
+
+            if (!compacting && garbage > MIN_GARBAGE && garbage > live) {
+                compacting = true;
+                compactor.execute(this::compact);
+            }
+        }
+
+        /**
+         * Rewrite the segment without its garbage, then atomically replace the old file.
+         */
+        private synchronized void compact() {
+            compacting = false;
+
+            // Closed, and perhaps deleted, since the compaction was queued.
+            if (closed)
+                return;
+
+            try {
+                Path temp = Files.createTempFile(root, path.getFileName().toString(), ".tmp");
+                boolean reopen = false;
+
+                try {
+                    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                        header.put(MAGIC).putInt(VERSION);
+
+                        long position = HEADER_SIZE;
+                        for (int slot = 0; slot < SLOTS; slot++) {
+                            byte[] bytes = read(slot);
+                            long offset = bytes == null ? 0 : position;
+
+                            header.putLong(offset).putInt(bytes == null ? 0 : bytes.length)
+                                .putLong(modified(slot));
+
+                            if (bytes != null) {
+                                ByteBuffer data = ByteBuffer.wrap(bytes);
+                                while (data.hasRemaining())
+                                    position += out.write(data, position);
+                            }
+                        }
+
+                        header.flip();
+                        while (header.hasRemaining())
+                            out.write(header, header.position());
+                        out.force(true);
+                    }
+
+                    closeChannel();
+                    reopen = true;
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temp);
+                    if (reopen)
+                        open();
+                }
+            } catch (IOException e) {
+                // Nothing has been lost, and the next write tries again, so there's no caller to
+                // fail. The count shows up in the diagnostics.
+                Metrics.counter("segment.compact.failed").increment();
+                // If the file couldn't be reopened, let the storage open it afresh.
+                if (!channel.isOpen())
+                    closed = true;
+            }
+        }
+
+        private void writeFully(final ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+
+        /**
+         * Close the file for good. Anything still holding the segment gets a
+         * {@link ClosedSegmentException}.
+         */
+        synchronized void close() throws IOException {
+            closed = true;
+            closeChannel();
+        }
+
+        private void closeChannel() throws IOException {
+            map = null;
+            channel.close();
+        }
+
+        private int slotPosition(final int slot) {
+            return MAGIC.length + 4 + slot * SLOT_SIZE;
+        }
+    }
+}
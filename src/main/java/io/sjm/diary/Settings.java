@@ -25,5 +25,51 @@ public class Settings {
     static String DIRFORMAT = "u" + File.separator + "MM";
     static String FILEFORMAT = "u-MM-dd";
 
-    static String PASSWORD = "";
+    // The environment variable the command line reads the password from.
+    static String PASSWORD_ENV = "DIARY_PASSWORD";
+
+    // How many milliseconds the window and the first entry should each take to appear after the
+    // diary is launched. Slower launches are counted in the Diagnostics dialog.
+    static long STARTUP_TARGET = 1000;
+
+    // How many seconds after the last edit to save the entry automatically.
+    static double AUTOSAVE_DELAY = 2;
+
+    // The salt shared by every entry's key derivation, and the number of PBKDF2 iterations used
+    // when creating it. Each entry file records its own salt and iteration count.
+    static String SALTFILE = "salt";
+    static int KDF_ITERATIONS = 310000;
+
+    // The encrypted full text search index, kept in the diary directory.
+    static String INDEXFILE = "index";
+
+    // The encrypted word and character counts of every entry, kept in the diary directory.
+    static String STATSFILE = "statistics";
+
+    // The directory in the diary directory holding a log of entry revisions for each month, and
+    // the most changes recorded between full copies of an entry.
+    static String HISTORYDIR = "history";
+    static int HISTORY_CHECKPOINT = 16;
+
+    // Records the progress of a password change so that it can be resumed if interrupted.
+    static String JOURNALFILE = "password-change";
+
+    // The port the local server listens on, 0 meaning any free port, and the file in the diary
+    // directory it writes its address and access token to.
+    static int SERVER_PORT = 0;
+    static String SERVERFILE = "server";
+
+    // How long, in milliseconds, changes made to the diary directory by other programs must stop
+    // for before they are acted on, and the longest a batch of changes is held back for.
+    static int WATCH_DELAY = 500;
+    static int WATCH_LIMIT = 5000;
+
+    // Bounds on the cache of decrypted entries kept for the session.
+    static int CACHE_ENTRIES = 64;
+    static long CACHE_BYTES = 8 * 1024 * 1024;
+
+    // Whether to prefetch the rest of the displayed month as well as the neighbouring days, and
+    // the most entries to prefetch at once. Keep the limit well below CACHE_ENTRIES.
+    static boolean PREFETCH_MONTH = true;
+    static int PREFETCH_LIMIT = 16;
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Measures how long the diary takes to start, and does the work the first entry needs in the
+ * background while the window is being shown. Two times are recorded in {@link Metrics}:
+ * {@code startup.window}, from the process starting to the window being shown, and
+ * {@code startup.entry}, from the process starting to the first entry being displayed, not
+ * counting time spent waiting for the user to type a password. Launches that miss
+ * {@link Settings#STARTUP_TARGET} are counted in {@code startup.slow}.
+ */
+public class Startup {
+    private static final long mainTime = System.nanoTime();
+    private static final long launchTime = launchTime();
+
+    private static final AtomicLong waited = new AtomicLong();
+    private static final AtomicBoolean ready = new AtomicBoolean();
+
+    /**
+     * @return when the process started on the {@link System#nanoTime()} clock, or when this class
+     * was loaded if the start time of the process isn't available
+     */
+    private static long launchTime() {
+        Optional<Instant> started = ProcessHandle.current().info().startInstant();
+        if (!started.isPresent())
+            return mainTime;
+
+        long sinceLaunch = Instant.now().toEpochMilli() - started.get().toEpochMilli();
+        return mainTime - Math.max(sinceLaunch, 0) * 1_000_000L;
+    }
+
+    /**
+     * Start the work the first entry needs on background threads: initialising the JCE providers,
+     * opening the diary and scanning which days of the month have entries, and reading the given
+     * day's entry from disk. Its decryption still waits for the password.
+     *
+     * @param store opens the diary, which takes long enough to be worth keeping off the caller's
+     *              thread too
+     * @param date  the date of the entry that will be displayed first
+     */
+    public static void warmUp(final Supplier<DiaryStore> store, final LocalDate date) {
+        start("warm-up-crypto", () -> {
+            try {
+                Cipher.getInstance("AES/GCM/NoPadding");
+                Cipher.getInstance("Blowfish");
+                SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+                EntryFormat.newSalt();
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+            }
+        });
+
+        start("warm-up-storage", () -> {
+            try {
+                DiaryStore diary = store.get();
+                if (diary.entryExists(date))
+                    diary.getStorage().read(date);
+                diary.entryExists(date.minusMonths(1));
+            } catch (IOException e) {
+                // The load itself reports any problem.
+            }
+        });
+    }
+
+    private static void start(final String name, final Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Record that the window has been shown.
+     */
+    public static void shown() {
+        record("startup.window", System.nanoTime() - launchTime);
+    }
+
+    /**
+     * Leave time spent waiting for the user out of the startup time.
+     *
+     * @param nanos how long the user took, e.g. to enter a password
+     */
+    public static void waited(final long nanos) {
+        if (!ready.get())
+            waited.addAndGet(nanos);
+    }
+
+    /**
+     * Record that the first entry has been displayed. Later calls are ignored.
+     */
+    public static void ready() {
+        if (ready.compareAndSet(false, true))
+            record("startup.entry", System.nanoTime() - launchTime - waited.get());
+    }
+
+    private static void record(final String name, final long nanos) {
+        Metrics.histogram(name).record(nanos);
+
+        if (nanos > Settings.STARTUP_TARGET * 1_000_000L)
+            Metrics.counter("startup.slow").increment();
+    }
+}
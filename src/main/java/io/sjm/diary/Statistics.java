@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Word and character counts for every entry, with running totals for each month and year, so
+ * that statistics about the diary can be shown without decrypting any entries. Counts are taken
+ * when an entry is saved, and the totals are adjusted as each count is added or replaced.
+ */
+public class Statistics {
+    private static final int VERSION = 1;
+
+    private final NavigableMap<LocalDate, Summary> summaries = new TreeMap<>();
+    private final Map<YearMonth, Totals> months = new HashMap<>();
+    private final Map<Year, Totals> years = new HashMap<>();
+    private final Totals total = new Totals();
+
+    /**
+     * The counts for a single entry.
+     */
+    public static class Summary {
+        final LocalDate date;
+        final long modified;
+        final int words;
+        final int characters;
+
+        /**
+         * @param entry    the entry to count
+         * @param modified when the entry was last written, used to detect stale counts
+         */
+        public Summary(final Entry entry, final long modified) {
+            String text = entry.getText();
+            int words = 0;
+            boolean inWord = false;
+
+            for (int i = 0; i < text.length(); ) {
+                int c = text.codePointAt(i);
+                boolean space = Character.isWhitespace(c) || Character.isSpaceChar(c);
+                if (!space && !inWord)
+                    words++;
+                inWord = !space;
+                i += Character.charCount(c);
+            }
+
+            this.date = entry.getDate();
+            this.modified = modified;
+            this.words = words;
+            this.characters = text.codePointCount(0, text.length());
+        }
+
+        private Summary(final LocalDate date, final long modified, final int words,
+            final int characters) {
+            this.date = date;
+            this.modified = modified;
+            this.words = words;
+            this.characters = characters;
+        }
+
+        public LocalDate getDate() {
+            return date;
+        }
+
+        public int getWords() {
+            return words;
+        }
+
+        public int getCharacters() {
+            return characters;
+        }
+    }
+
+    /**
+     * The number of entries, words and characters in a period.
+     */
+    public static class Totals {
+        private int entries;
+        private long words;
+        private long characters;
+
+        private void add(final Summary summary, final int sign) {
+            entries += sign;
+            words += sign * (long) summary.words;
+            characters += sign * (long) summary.characters;
+        }
+
+        private Totals copy() {
+            Totals copy = new Totals();
+            copy.entries = entries;
+            copy.words = words;
+            copy.characters = characters;
+            return copy;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getWords() {
+            return words;
+        }
+
+        public long getCharacters() {
+            return characters;
+        }
+    }
+
+    /**
+     * Add or replace the counts for an entry.
+     */
+    public synchronized void put(final Summary summary) {
+        remove(summary.date);
+
+        summaries.put(summary.date, summary);
+        addToTotals(summary, 1);
+    }
+
+    /**
+     * Add or replace the counts for an entry, unless the counts held for it have changed since
+     * they were found to be out of date. Keeps a count of an older copy of an entry from replacing
+     * one made when it was saved.
+     *
+     * @param expected when the counted copy of the entry was written, or -1 if it hadn't been
+     * @param summary  the new counts
+     */
+    public synchronized void putIfUnchanged(final long expected, final Summary summary) {
+        if (modified(summary.date) == expected)
+            put(summary);
+    }
+
+    public synchronized void remove(final LocalDate date) {
+        Summary summary = summaries.remove(date);
+
+        if (summary != null)
+            addToTotals(summary, -1);
+    }
+
+    private void addToTotals(final Summary summary, final int sign) {
+        months.computeIfAbsent(YearMonth.from(summary.date), m -> new Totals()).add(summary, sign);
+        years.computeIfAbsent(Year.from(summary.date), y -> new Totals()).add(summary, sign);
+        total.add(summary, sign);
+    }
+
+    /**
+     * @return when the counted copy of an entry was written, or -1 if it hasn't been counted
+     */
+    public synchronized long modified(final LocalDate date) {
+        Summary summary = summaries.get(date);
+
+        return summary == null ? -1 : summary.modified;
+    }
+
+    public synchronized Set<LocalDate> dates() {
+        return new HashSet<>(summaries.keySet());
+    }
+
+    /**
+     * @return the counts for every entry between two dates inclusive, in date order
+     */
+    public synchronized List<Summary> between(final LocalDate from, final LocalDate to) {
+        return new ArrayList<>(summaries.subMap(from, true, to, true).values());
+    }
+
+    public synchronized Totals getTotals(final YearMonth month) {
+        Totals totals = months.get(month);
+        return totals == null ? new Totals() : totals.copy();
+    }
+
+    public synchronized Totals getTotals(final Year year) {
+        Totals totals = years.get(year);
+        return totals == null ? new Totals() : totals.copy();
+    }
+
+    public synchronized Totals getTotals() {
+        return total.copy();
+    }
+
+    /**
+     * The number of consecutive days with writing up to the given day. A day without writing yet
+     * doesn't break the streak, so that it isn't lost first thing in the morning.
+     *
+     * @param today the last day of the streak
+     * @return the length of the streak in days
+     */
+    public synchronized int getStreak(final LocalDate today) {
+        LocalDate day = hasWriting(today) ? today : today.minusDays(1);
+        int streak = 0;
+
+        while (hasWriting(day)) {
+            streak++;
+            day = day.minusDays(1);
+        }
+
+        return streak;
+    }
+
+    /**
+     * @return the most consecutive days with writing
+     */
+    public synchronized int getLongestStreak() {
+        int longest = 0;
+        int streak = 0;
+        LocalDate previous = null;
+
+        for (Summary summary : summaries.values()) {
+            if (summary.words == 0)
+                continue;
+
+            streak = previous != null && previous.plusDays(1).equals(summary.date) ?
+                streak + 1 : 1;
+            longest = Math.max(longest, streak);
+            previous = summary.date;
+        }
+
+        return longest;
+    }
+
+    private boolean hasWriting(final LocalDate date) {
+        Summary summary = summaries.get(date);
+
+        return summary != null && summary.words > 0;
+    }
+
+    public synchronized byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(VERSION);
+
+        out.writeInt(summaries.size());
+        for (Summary summary : summaries.values()) {
+            out.writeLong(summary.date.toEpochDay());
+            out.writeLong(summary.modified);
+            out.writeInt(summary.words);
+            out.writeInt(summary.characters);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static Statistics fromBytes(final byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        Statistics statistics = new Statistics();
+
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported statistics version " + version + ".");
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            LocalDate date = LocalDate.ofEpochDay(in.readLong());
+            statistics.put(new Summary(date, in.readLong(), in.readInt(), in.readInt()));
+        }
+
+        return statistics;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
+import javafx.scene.control.Tooltip;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.format.TextStyle;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Shows a year of writing as a calendar heatmap, with a square for each day shaded by the number
+ * of words written, alongside the totals for each month and the year and the current and longest
+ * streaks. Everything is drawn from {@link Statistics}, so no entries are decrypted. Clicking a
+ * day returns its date, so that its entry can be shown.
+ */
+public class StatisticsDialog extends Dialog<LocalDate> {
+    private static final int CELL = 12;
+    private static final Color[] SHADES = {Color.web("#eee"), Color.web("#b3f0dd"),
+        Color.web("#6fc"), Color.web("#2b9"), Color.web("#175")};
+
+    private final Statistics statistics;
+    private final LocalDate today;
+    private final VBox content = new VBox(10);
+    private int year;
+
+    public StatisticsDialog(final Statistics statistics, final LocalDate today) {
+        this.statistics = statistics;
+        this.today = today;
+        this.year = today.getYear();
+
+        setTitle("Statistics");
+        setHeaderText(String.format("Current streak: %d days. Longest streak: %d days.",
+            statistics.getStreak(today), statistics.getLongestStreak()));
+
+        content.setPadding(new Insets(20));
+        getDialogPane().setContent(content);
+        getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+        setResultConverter(dialogButton -> null);
+
+        showYear();
+    }
+
+    private void showYear() {
+        Button previous = new Button("<");
+        previous.setOnAction(e -> {
+            year--;
+            showYear();
+        });
+        Button next = new Button(">");
+        next.setOnAction(e -> {
+            year++;
+            showYear();
+        });
+        next.setDisable(year >= today.getYear());
+
+        Statistics.Totals totals = statistics.getTotals(Year.of(year));
+        Label yearLabel = new Label(String.format("%d: %d entries, %,d words, %,d characters",
+            year, totals.getEntries(), totals.getWords(), totals.getCharacters()));
+
+        HBox header = new HBox(10, previous, yearLabel, next);
+        header.setAlignment(Pos.CENTER_LEFT);
+
+        content.getChildren().setAll(header, buildHeatmap(), buildMonths());
+        if (getDialogPane().getScene() != null)
+            getDialogPane().getScene().getWindow().sizeToScene();
+    }
+
+    /**
+     * Lay the year out in columns of weeks starting on Monday, with a row for each day of the
+     * week.
+     */
+    private GridPane buildHeatmap() {
+        LocalDate first = LocalDate.of(year, 1, 1);
+        LocalDate last = LocalDate.of(year, 12, 31);
+
+        Map<LocalDate, Statistics.Summary> days = new HashMap<>();
+        int most = 0;
+        for (Statistics.Summary summary : statistics.between(first, last)) {
+            days.put(summary.getDate(), summary);
+            most = Math.max(most, summary.getWords());
+        }
+
+        GridPane grid = new GridPane();
+        grid.setHgap(2);
+        grid.setVgap(2);
+
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (day.getValue() % 2 == 1)
+                grid.add(new Label(day.getDisplayName(TextStyle.SHORT, Locale.getDefault())), 0,
+                    day.getValue());
+        }
+
+        int offset = first.getDayOfWeek().getValue() - 1;
+        for (LocalDate date = first; !date.isAfter(last); date = date.plusDays(1)) {
+            int week = (date.getDayOfYear() - 1 + offset) / 7;
+
+            if (date.getDayOfMonth() == 1)
+                grid.add(new Label(date.getMonth().getDisplayName(TextStyle.SHORT,
+                    Locale.getDefault())), week + 1, 0, 4, 1);
+
+            Statistics.Summary summary = days.get(date);
+            int words = summary == null ? 0 : summary.getWords();
+            // Shade relative to the year's longest entry, keeping any writing off the empty shade.
+            int shade = words == 0 ? 0 : 1 + (SHADES.length - 2) * words / Math.max(most, 1);
+
+            Rectangle cell = new Rectangle(CELL, CELL, SHADES[shade]);
+            Tooltip.install(cell, new Tooltip(summary == null ? date.toString() :
+                String.format("%s: %,d words, %,d characters", date, words,
+                    summary.getCharacters())));
+            LocalDate chosen = date;
+            cell.setOnMouseClicked(e -> {
+                setResult(chosen);
+                close();
+            });
+
+            grid.add(cell, week + 1, date.getDayOfWeek().getValue());
+        }
+
+        return grid;
+    }
+
+    private GridPane buildMonths() {
+        GridPane grid = new GridPane();
+        grid.setHgap(20);
+
+        grid.addRow(0, new Label("Month"), new Label("Entries"), new Label("Words"),
+            new Label("Characters"));
+        for (Month month : Month.values()) {
+            Statistics.Totals totals = statistics.getTotals(YearMonth.of(year, month));
+            grid.addRow(month.getValue(),
+                new Label(month.getDisplayName(TextStyle.FULL, Locale.getDefault())),
+                new Label(String.valueOf(totals.getEntries())),
+                new Label(String.format("%,d", totals.getWords())),
+                new Label(String.format("%,d", totals.getCharacters())));
+        }
+
+        return grid;
+    }
+}
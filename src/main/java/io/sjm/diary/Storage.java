@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SortedMap;
+
+/**
+ * Where the encrypted contents of diary entries are kept. Implementations deal only in opaque
+ * bytes; encryption and encoding happen above this layer.
+ */
+public interface Storage {
+    /**
+     * Read the stored bytes of an entry.
+     *
+     * @param date the date of the entry
+     * @return the entry's bytes
+     * @throws java.nio.file.NoSuchFileException if there is no entry for the date
+     * @throws IOException
+     */
+    byte[] read(LocalDate date) throws IOException;
+
+    /**
+     * Store the bytes of an entry, replacing any existing entry for the date.
+     *
+     * @param date  the date of the entry
+     * @param bytes the entry's bytes
+     * @return when the entry was stored, as returned by {@link #list()}
+     * @throws IOException
+     */
+    long write(LocalDate date, byte[] bytes) throws IOException;
+
+    /**
+     * Remove the entry for a date, if there is one.
+     *
+     * @throws IOException
+     */
+    void delete(LocalDate date) throws IOException;
+
+    /**
+     * @param month the month to scan
+     * @return a bitmask with bit {@code n - 1} set if there is an entry for day {@code n}
+     * @throws IOException
+     */
+    int scanMonth(YearMonth month) throws IOException;
+
+    /**
+     * List every stored entry.
+     *
+     * @return the dates of all entries, mapped to when each was last written
+     * @throws IOException
+     */
+    SortedMap<LocalDate, Long> list() throws IOException;
+
+    /**
+     * Read many entries at once, in whatever order reads them fastest.
+     *
+     * @param dates    the dates of the entries to read
+     * @param consumer given the date and bytes of each entry in turn
+     * @throws IOException
+     */
+    void scan(Collection<LocalDate> dates, EntryConsumer consumer) throws IOException;
+
+    /**
+     * Receives entries read by {@link #scan(Collection, EntryConsumer)}.
+     */
+    interface EntryConsumer {
+        void accept(LocalDate date, byte[] bytes) throws IOException;
+    }
+
+    /**
+     * Copy every entry from one storage to another, checking that each copy reads back intact.
+     *
+     * @param from the storage to copy from
+     * @param to   the storage to copy into
+     * @throws IOException
+     */
+    static void copy(final Storage from, final Storage to) throws IOException {
+        from.scan(from.list().keySet(), (date, bytes) -> {
+            to.write(date, bytes);
+            if (!Arrays.equals(bytes, to.read(date)))
+                throw new IOException("The copy of the entry for " + date + " is corrupt.");
+        });
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+
+/**
+ * Converts the diary between a file per day and a segment file per year. Entries are copied
+ * without being decrypted, and the originals are only removed once every copy has been read back
+ * and checked.
+ * <p>
+ * Usage: {@code StorageConverter segments|files}
+ */
+public class StorageConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 || !(args[0].equals("segments") || args[0].equals("files"))) {
+            System.err.println("Usage: StorageConverter segments|files");
+            System.exit(2);
+        }
+
+        Path root = Paths.get(Settings.homeDir);
+        boolean toSegments = args[0].equals("segments");
+
+        if (SegmentStorage.isPresent(root) == toSegments) {
+            System.err.println("The diary is already stored as " + args[0] + ".");
+            System.exit(1);
+        }
+
+        Storage files = new FileStorage(root, Settings.DIRFORMAT, Settings.FILEFORMAT);
+        SegmentStorage segments = new SegmentStorage(root);
+
+        int count = convert(toSegments ? files : segments, toSegments ? segments : files);
+        segments.close();
+
+        System.out.println("Converted " + count + " entries to " + args[0] + ".");
+    }
+
+    /**
+     * Copy every entry from one storage to another and then delete the originals.
+     *
+     * @return the number of entries converted
+     */
+    static int convert(final Storage from, final Storage to) throws IOException {
+        Storage.copy(from, to);
+
+        int count = 0;
+        for (LocalDate date : from.list().keySet()) {
+            from.delete(date);
+            count++;
+        }
+
+        return count;
+    }
+}
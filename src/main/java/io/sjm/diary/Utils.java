@@ -16,87 +16,301 @@
 
 package io.sjm.diary;
 
-import org.json.JSONObject;
-import org.json.JSONStringer;
-
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
 
+/**
+ * Static access to the diary in {@link Settings#homeDir}, which is opened when this class is
+ * first used. See {@link DiaryStore} for the details of each operation.
+ */
 public class Utils {
-    public static String toJSONString(final Entry entry) {
-        JSONStringer stringer = new JSONStringer();
+    private static final DiaryStore store = new DiaryStore(Paths.get(Settings.homeDir));
 
-        stringer.object();
-        stringer.key("date");
-        stringer.value(String.valueOf(entry.getDate()));
-        stringer.key("entry");
-        stringer.value(entry.getText());
-        stringer.endObject();
-
-        return stringer.toString();
+    /**
+     * @return the diary in {@link Settings#homeDir}
+     */
+    static DiaryStore getStore() {
+        return store;
     }
 
     /**
-     * Read a diary entry from the corresponding file.
+     * Read a diary entry from the corresponding file, or from the cache if it has been read or
+     * saved recently.
      *
      * @throws IOException
      * @throws GeneralSecurityException
      */
     public static Entry loadEntry(final LocalDate date)
         throws IOException, GeneralSecurityException {
-        assert !Settings.PASSWORD.isEmpty();
+        return store.loadEntry(date);
+    }
 
-        byte[] encoded = Files.readAllBytes(getPath(date));
-        String ciphertext = new String(encoded, Charset.defaultCharset());
-        String plaintext = Crypto.decryptString(ciphertext, Settings.PASSWORD);
+    /**
+     * Read and decrypt a diary entry without consulting or filling the cache, for bulk operations
+     * that would otherwise flush it.
+     */
+    static Entry readEntry(final LocalDate date)
+        throws IOException, GeneralSecurityException {
+        return store.readEntry(date);
+    }
 
-        JSONObject json = new JSONObject(plaintext);
+    /**
+     * Read the encrypted bytes of many entries in whatever order suits the storage.
+     */
+    static void scanEntries(final Collection<LocalDate> dates,
+        final Storage.EntryConsumer consumer) throws IOException {
+        store.scanEntries(dates, consumer);
+    }
 
-        return new Entry(LocalDate.parse(json.getString("date")), json.getString("entry"));
+    /**
+     * Decrypt an entry read by {@link #scanEntries(Collection, Storage.EntryConsumer)}.
+     */
+    static Entry decodeEntry(final LocalDate date, final byte[] encoded)
+        throws GeneralSecurityException {
+        return store.decodeEntry(date, encoded);
     }
 
-    public static void saveEntry(final Entry entry) throws IOException {
-        assert !Settings.PASSWORD.isEmpty();
+    /**
+     * Encrypt and write a diary entry to the corresponding file. Entries are always written in
+     * the current {@link EntryFormat}, so entries in an older format are upgraded when next saved.
+     *
+     * @throws IOException
+     * @throws GeneralSecurityException if the entry can't be encrypted
+     */
+    public static void saveEntry(final Entry entry) throws IOException, GeneralSecurityException {
+        store.saveEntry(entry);
+    }
 
-        Path path = getPath(entry.getDate());
+    /**
+     * @return every saved version of the entry for the given date, oldest first
+     * @throws IOException
+     * @throws GeneralSecurityException if the history can't be decrypted
+     */
+    public static List<History.Revision> getRevisions(final LocalDate date)
+        throws IOException, GeneralSecurityException {
+        return store.getRevisions(date);
+    }
 
-        try {
-            String ciphertext = Crypto.encryptString(toJSONString(entry), Settings.PASSWORD);
-            Files.createDirectories(path.getParent());
-            Files.write(path, ciphertext.getBytes(), StandardOpenOption.CREATE);
-        } catch (GeneralSecurityException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Change the password used to encrypt and decrypt entries. Entries decrypted with the old
+     * password are wiped from the cache.
+     *
+     * @param password the new password
+     */
+    public static void setPassword(final String password) {
+        store.setPassword(password);
+    }
+
+    /**
+     * @return whether a password has been entered
+     */
+    public static boolean isUnlocked() {
+        return store.isUnlocked();
+    }
+
+    /**
+     * @return whether the given password is the one that has been entered
+     */
+    public static boolean hasPassword(final String password) {
+        return store.hasPassword(password);
+    }
+
+    /**
+     * @return whether the entry for the given date can be loaded without reading the disk
+     */
+    public static boolean isCached(final LocalDate date) {
+        return store.isCached(date);
     }
 
     /**
-     * Check whether a file corresponding to the given date exists.
+     * Wipe every decrypted entry held in memory. Called when the application exits.
+     */
+    public static void clearCache() {
+        store.clearCache();
+    }
+
+    /**
+     * Check whether a file corresponding to the given date exists. This is answered from an
+     * in-memory index, so it is cheap enough to call for every cell of a calendar.
      *
      * @param date the date to be checked for a corresponding file
      * @return whether a file exists for the specified date
      */
     public static boolean entryExists(final LocalDate date) {
-        return Files.exists(getPath(date));
+        return store.entryExists(date);
     }
 
     /**
-     * Given a date, generate a file path for entry loading and saving.
+     * List every entry on disk.
      *
-     * @param date the date of the relevant diary entry
-     * @return the path to the diary entry
+     * @return the dates of all entries, mapped to when each entry was last written
+     * @throws IOException
+     */
+    public static SortedMap<LocalDate, Long> listEntries() throws IOException {
+        return store.listEntries();
+    }
+
+    /**
+     * @return the storage holding the diary's entries
      */
-    private static Path getPath(final LocalDate date) {
-        String dirName = date.format(DateTimeFormatter.ofPattern(Settings.DIRFORMAT));
-        String filename = date.format(DateTimeFormatter.ofPattern(Settings.FILEFORMAT));
+    static Storage getStorage() {
+        return store.getStorage();
+    }
 
-        return Paths.get(Settings.homeDir + dirName + File.separator + filename + ".json");
+    /**
+     * Get the full text search index, loading it on first use.
+     *
+     * @return the search index
+     * @throws IOException
+     * @throws GeneralSecurityException if the index or an entry can't be decrypted
+     */
+    public static SearchIndex getSearchIndex() throws IOException, GeneralSecurityException {
+        return store.getSearchIndex();
+    }
+
+    /**
+     * Start watching the diary for entries changed by other programs, such as a file sync.
+     *
+     * @return the watcher, or null if the diary can't be watched
+     * @throws IOException
+     */
+    public static DiaryWatcher watch() throws IOException {
+        return store.watch();
+    }
+
+    /**
+     * Get the writing statistics, loading them on first use.
+     *
+     * @return the statistics
+     * @throws IOException
+     * @throws GeneralSecurityException if the statistics or an entry can't be decrypted
+     */
+    public static Statistics getStatistics() throws IOException, GeneralSecurityException {
+        return store.getStatistics();
+    }
+
+    /**
+     * Write the search index and statistics to disk now rather than waiting for scheduled writes.
+     * Called when the application exits.
+     */
+    public static void flush() {
+        store.flush();
+    }
+
+    static History getHistory() {
+        return store.getHistory();
+    }
+
+    static Path getSearchIndexPath() {
+        return store.getSearchIndexPath();
+    }
+
+    static Path getStatisticsPath() {
+        return store.getStatisticsPath();
+    }
+
+    /**
+     * Replace the contents of a file so that, even after a crash, it holds either the old or the
+     * new contents and never a mixture. The data is written to a temporary file in the same
+     * directory, forced to disk and then renamed over the original, and the directory is then
+     * forced to disk so that the rename survives a crash too.
+     *
+     * @param path  the file to write
+     * @param bytes the new contents of the file
+     * @throws IOException
+     */
+    static void writeAtomically(final Path path, final byte[] bytes) throws IOException {
+        write(path, bytes, true);
+    }
+
+    /**
+     * Create a file in the same way as {@link #writeAtomically(Path, byte[])}, except that an
+     * existing file is left alone, even one created at the same moment by another process.
+     *
+     * @param path  the file to create
+     * @param bytes the contents of the file
+     * @throws FileAlreadyExistsException if the file exists
+     * @throws IOException
+     */
+    static void createAtomically(final Path path, final byte[] bytes) throws IOException {
+        write(path, bytes, false);
+    }
+
+    private static void write(final Path path, final byte[] bytes, final boolean replace)
+        throws IOException {
+        Path temp;
+        try {
+            temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        } catch (NoSuchFileException e) {
+            // The directory usually exists already, so only create it when it turns out not to,
+            // rather than checking on every write.
+            Files.createDirectories(path.getParent());
+            temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        }
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(true);
+            }
+
+            if (replace) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                // Some platforms rename over an existing file even when asked not to, but a link
+                // never replaces one.
+                try {
+                    Files.createLink(path, temp);
+                } catch (UnsupportedOperationException e) {
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        // Make the rename itself durable.
+        forceDirectory(path.getParent());
+    }
+
+    /**
+     * Force a directory to disk, so that files just created or renamed in it survive a crash. Not
+     * every platform can open a directory, so this is only a best effort.
+     *
+     * @param path the directory
+     */
+    static void forceDirectory(final Path path) {
+        try (FileChannel directory = FileChannel.open(path, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Ignored.
+        }
+    }
+
+    /**
+     * Get the salt used to derive the key for newly written entries, creating it if this diary
+     * doesn't have one yet.
+     *
+     * @return the diary's key derivation salt
+     * @throws IOException
+     */
+    static byte[] getSalt() throws IOException {
+        return store.getSalt();
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event covering the time from a date being chosen in the GUI to its entry
+ * being displayed.
+ */
+@Name("io.sjm.diary.ViewEntry")
+@Label("View Entry")
+@Category("Diary")
+@Description("From choosing a date to its entry being displayed")
+@StackTrace(false)
+class ViewEntryEvent extends Event {
+    @Label("Date")
+    String date;
+
+    @Label("Cached")
+    @Description("Whether the entry was already in the cache when it was requested")
+    boolean cached;
+
+    @Label("Characters")
+    long length;
+
+    @Label("Outcome")
+    String outcome;
+}
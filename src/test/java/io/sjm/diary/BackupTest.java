@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Backs up a diary directory with {@link Backup} and restores it somewhere else.
+ */
+public class BackupTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private Backup backup;
+
+    @Before public void setUp() throws IOException {
+        root = folder.newFolder("diary").toPath();
+        // Inside the diary directory, which a snapshot must skip.
+        backup = new Backup(root.resolve("backup"));
+
+        write("salt", "0123456789abcdef", 1_000_000);
+        write("2015/06/21", "First entry.", 2_000_000);
+        write("2015/06/22", "Second entry.", 3_000_000);
+        write("2015/06/23", "First entry.", 4_000_000);
+        write("2015/06/24.tmp", "Half written.", 5_000_000);
+        write(Settings.SERVERFILE, "token", 6_000_000);
+    }
+
+    @Test public void restoresSnapshot() throws IOException {
+        String snapshot = backup.create(root);
+        assertEquals(4, backup.getFiles());
+        // The two identical entries are stored once.
+        assertEquals(3, backup.getCopied());
+
+        Path restored = folder.getRoot().toPath().resolve("restored");
+        assertEquals(4, backup.restore(snapshot, restored));
+
+        for (String name : new String[] {"salt", "2015/06/21", "2015/06/22", "2015/06/23"}) {
+            assertArrayEquals(name, Files.readAllBytes(root.resolve(name)),
+                Files.readAllBytes(restored.resolve(name)));
+            assertEquals(name, Files.getLastModifiedTime(root.resolve(name)),
+                Files.getLastModifiedTime(restored.resolve(name)));
+        }
+        assertFalse(Files.exists(restored.resolve("2015/06/24.tmp")));
+        assertFalse(Files.exists(restored.resolve(Settings.SERVERFILE)));
+        assertFalse(Files.exists(restored.resolve("backup")));
+    }
+
+    @Test public void copiesOnlyChanges() throws IOException {
+        String first = backup.create(root);
+
+        backup.create(root);
+        assertEquals(0, backup.getCopied());
+
+        write("2015/06/22", "Second entry, edited.", 7_000_000);
+        String last = backup.create(root);
+        assertEquals(1, backup.getCopied());
+        assertEquals(3, backup.listSnapshots().size());
+        assertEquals(last, backup.listSnapshots().get(2));
+
+        // The first snapshot still has the version it was taken with.
+        Path restored = folder.getRoot().toPath().resolve("restored");
+        backup.restore(first, restored);
+        assertEquals("Second entry.", read(restored.resolve("2015/06/22")));
+    }
+
+    @Test public void rejectsCorruptObject() throws IOException {
+        String snapshot = backup.create(root);
+
+        try (Stream<Path> objects = Files.walk(root.resolve("backup").resolve("objects"))) {
+            for (Path object : objects.filter(Files::isRegularFile).collect(Collectors.toList()))
+                Files.write(object, "Bit rot.".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try {
+            backup.restore(snapshot, folder.getRoot().toPath().resolve("restored"));
+            fail("restored a corrupt backup");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test public void rejectsNonEmptyDirectory() throws IOException {
+        String snapshot = backup.create(root);
+
+        try {
+            backup.restore(snapshot, root);
+            fail("restored over an existing diary");
+        } catch (FileAlreadyExistsException e) {
+            // Expected.
+        }
+
+        assertEquals("Second entry.", read(root.resolve("2015/06/22")));
+    }
+
+    private void write(final String name, final String text, final long modified)
+        throws IOException {
+        Path path = root.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+    }
+
+    private static String read(final Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
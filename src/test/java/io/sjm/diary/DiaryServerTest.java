@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs a {@link DiaryServer} over a diary in a temporary directory and talks to it as a local
+ * client would.
+ */
+public class DiaryServerTest {
+    private static final LocalDate DATE = LocalDate.of(2015, 6, 21);
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private int iterations;
+    private DiaryStore store;
+    private DiaryServer server;
+
+    @Before public void setUp() throws IOException {
+        // Key derivation at full strength would make every test take seconds.
+        iterations = Settings.KDF_ITERATIONS;
+        Settings.KDF_ITERATIONS = 1000;
+
+        store = new DiaryStore(folder.getRoot().toPath());
+        store.setPassword("password");
+        server = new DiaryServer(store, 0);
+        server.start();
+    }
+
+    @After public void tearDown() throws IOException {
+        server.stop();
+        store.close();
+        Settings.KDF_ITERATIONS = iterations;
+    }
+
+    @Test public void rejectsMissingToken() throws IOException {
+        HttpURLConnection connection = open("entries/" + DATE, "GET", null);
+
+        assertEquals(401, connection.getResponseCode());
+    }
+
+    @Test public void rejectsWrongToken() throws IOException {
+        HttpURLConnection connection = open("entries/" + DATE, "GET", "0123456789abcdef");
+
+        assertEquals(401, connection.getResponseCode());
+    }
+
+    @Test public void putThenGet() throws IOException {
+        byte[] body = EntryCodec.encode(new Entry(DATE, "A day out.\nIt rained."));
+
+        assertEquals(204, put("entries/" + DATE, body).getResponseCode());
+
+        HttpURLConnection connection = open("entries/" + DATE, "GET", server.getToken());
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(body, read(connection.getInputStream()));
+    }
+
+    @Test public void getMissingEntry() throws IOException {
+        HttpURLConnection connection = open("entries/" + DATE, "GET", server.getToken());
+
+        assertEquals(404, connection.getResponseCode());
+    }
+
+    @Test public void putForAnotherDate() throws IOException {
+        byte[] body = EntryCodec.encode(new Entry(DATE.plusDays(1), "Tomorrow."));
+
+        assertEquals(400, put("entries/" + DATE, body).getResponseCode());
+    }
+
+    @Test public void failedSave() throws IOException {
+        // A file where the year's directory should be stops the entry from being written.
+        Files.createFile(folder.getRoot().toPath().resolve(String.valueOf(DATE.getYear())));
+        byte[] body = EntryCodec.encode(new Entry(DATE, "Lost."));
+
+        assertEquals(500, put("entries/" + DATE, body).getResponseCode());
+        assertEquals(404, open("entries/" + DATE, "GET", server.getToken()).getResponseCode());
+    }
+
+    private HttpURLConnection open(final String path, final String method, final String token)
+        throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + "/" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        if (token != null)
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+
+        return connection;
+    }
+
+    private HttpURLConnection put(final String path, final byte[] body) throws IOException {
+        HttpURLConnection connection = open(path, "PUT", server.getToken());
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+
+        return connection;
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        try (InputStream stream = in) {
+            int n;
+            while ((n = stream.read(buffer)) > 0)
+                bytes.write(buffer, 0, n);
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link EntryCodec} reads and writes exactly what org.json did, since existing
+ * entries were written with it.
+ */
+public class EntryCodecTest {
+    private static final LocalDate DATE = LocalDate.of(2015, 6, 21);
+
+    // Characters that org.json escapes, or nearly does.
+    private static final String ESCAPED =
+        "\"\\/\b\f\n\r\t\u0000\u001f\u0080\u009f\u00a0\u2000\u20ff\u2100<";
+
+    private static final List<String> TEXTS = Arrays.asList(
+        "",
+        "Plain ASCII text.",
+        "\"Quoted\" and back\\slashed",
+        "Line one\nline two\r\n\ttabbed",
+        "Control \u0000\u0001\u0008\u000b\u000c\u001f\u007f characters",
+        "</script> and \u2028\u2029 separators",
+        "Caf\u00e9, \u65e5\u8a18, \u0434\u043d\u0435\u0432\u043d\u0438\u043a",
+        "Surrogate pairs: \ud83d\ude00 \ud834\udd1e",
+        "Lone surrogates: \ud83d x \ude00");
+
+    @Test public void encodesAsJSONStringerDid() {
+        for (String text : TEXTS)
+            assertArrayEquals(text, jsonStringer(text), EntryCodec.encode(new Entry(DATE, text)));
+    }
+
+    @Test public void decodesWhatItEncodes() {
+        for (String text : TEXTS) {
+            // Lone surrogates can't be encoded as UTF-8, so they don't survive any encoder.
+            String expected = new JSONObject(new String(jsonStringer(text),
+                StandardCharsets.UTF_8)).getString("entry");
+
+            Entry entry = EntryCodec.decode(EntryCodec.encode(new Entry(DATE, text)));
+            assertEquals(DATE, entry.getDate());
+            assertEquals(text, expected, entry.getText());
+        }
+    }
+
+    @Test public void decodesJSONNotWrittenByTheEncoder() {
+        String json = "{ \"entry\" : \"\\u00e9\\/\\b\\f\\n\\r\\t\\\"\\\\\\ud83d\\ude00\" , " +
+            "\"date\" : \"2015-06-21\" }";
+
+        Entry entry = EntryCodec.decode(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(DATE, entry.getDate());
+        assertEquals(new JSONObject(json).getString("entry"), entry.getText());
+    }
+
+    @Test public void matchesOrgJsonForRandomText() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            String text = randomText(random);
+            byte[] expected = jsonStringer(text);
+            byte[] encoded = EntryCodec.encode(new Entry(DATE, text));
+
+            assertArrayEquals(text, expected, encoded);
+            assertEquals(new JSONObject(new String(expected, StandardCharsets.UTF_8))
+                .getString("entry"), EntryCodec.decode(encoded).getText());
+        }
+    }
+
+    @Test(expected = JSONException.class) public void rejectsTruncatedJSON() {
+        byte[] encoded = EntryCodec.encode(new Entry(DATE, "Some text"));
+
+        EntryCodec.decode(Arrays.copyOf(encoded, encoded.length - 3));
+    }
+
+    @Test(expected = JSONException.class) public void rejectsBadEscapes() {
+        EntryCodec.decode("{\"date\":\"2015-06-21\",\"entry\":\"\\x\"}"
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = JSONException.class) public void rejectsMissingText() {
+        EntryCodec.decode("{\"date\":\"2015-06-21\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write an entry the way it was written before {@link EntryCodec}.
+     */
+    private static byte[] jsonStringer(final String text) {
+        JSONStringer stringer = new JSONStringer();
+
+        stringer.object();
+        stringer.key("date");
+        stringer.value(String.valueOf(DATE));
+        stringer.key("entry");
+        stringer.value(text);
+        stringer.endObject();
+
+        return stringer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return text mixing ASCII, characters org.json escapes, other BMP characters and surrogate
+     * pairs, with the odd lone surrogate
+     */
+    private static String randomText(final Random random) {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(200);
+
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 5)
+                text.append((char) (0x20 + random.nextInt(0x5f)));
+            else if (kind < 7)
+                text.append(ESCAPED.charAt(random.nextInt(ESCAPED.length())));
+            else if (kind < 8)
+                text.append((char) (0xa0 + random.nextInt(0xd800 - 0xa0)));
+            else if (kind < 9)
+                text.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            else
+                text.append((char) (0xd800 + random.nextInt(0x800)));
+        }
+
+        return text.toString();
+    }
+}
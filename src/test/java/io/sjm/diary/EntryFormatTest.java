@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads back what {@link EntryFormat} writes, reads the formats it no longer writes, and checks
+ * that anything damaged is rejected rather than decrypted to garbage.
+ */
+public class EntryFormatTest {
+    // Key derivation at full strength would make every test take seconds.
+    private static final int ITERATIONS = 1000;
+
+    private static final byte[] MAGIC = {(byte) 0xD1, 'A', 'R', 'Y'};
+
+    private CryptoEngine engine;
+    private byte[] salt;
+
+    @Before public void setUp() throws GeneralSecurityException {
+        engine = new CryptoEngine("password");
+        salt = EntryFormat.newSalt();
+    }
+
+    @Test public void roundTripsShortEntries() throws GeneralSecurityException {
+        byte[] plaintext = utf8("A short entry.");
+
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, plaintext);
+        assertTrue(EntryFormat.isCurrent(encoded));
+        assertArrayEquals(plaintext, EntryFormat.decode(engine, encoded));
+    }
+
+    @Test public void roundTripsLongEntries() throws GeneralSecurityException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            text.append("Day ").append(i).append(" was much like the one before.\n");
+        byte[] plaintext = utf8(text.toString());
+
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, plaintext);
+        assertTrue("didn't compress", encoded.length < plaintext.length / 2);
+        assertArrayEquals(plaintext, EntryFormat.decode(engine, encoded));
+    }
+
+    @Test public void roundTripsIncompressibleEntries() throws GeneralSecurityException {
+        byte[] plaintext = new byte[4096];
+        new Random(1).nextBytes(plaintext);
+
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, plaintext);
+        assertArrayEquals(plaintext, EntryFormat.decode(engine, encoded));
+    }
+
+    @Test public void readsVersionOne() throws GeneralSecurityException {
+        byte[] plaintext = utf8("Written before entries were compressed.");
+        byte[] nonce = new byte[12];
+
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 2 + salt.length + 4 + nonce.length);
+        header.put(MAGIC).put((byte) 1).put((byte) salt.length).put(salt).putInt(ITERATIONS)
+            .put(nonce);
+
+        Cipher cipher = engine.aesCipher(Cipher.ENCRYPT_MODE, salt, ITERATIONS, nonce);
+        cipher.updateAAD(header.array());
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        byte[] encoded = Arrays.copyOf(header.array(), header.capacity() + ciphertext.length);
+        System.arraycopy(ciphertext, 0, encoded, header.capacity(), ciphertext.length);
+
+        assertArrayEquals(plaintext, EntryFormat.decode(engine, encoded));
+    }
+
+    @Test public void readsLegacyFiles() throws GeneralSecurityException {
+        byte[] plaintext = utf8("{\"date\":\"2015-06-21\",\"entry\":\"Written with Blowfish.\"}");
+        byte[] encoded = Base64.getEncoder().encode(engine.encrypt(plaintext));
+
+        assertTrue(!EntryFormat.isCurrent(encoded));
+        assertArrayEquals(plaintext, EntryFormat.decode(engine, encoded));
+    }
+
+    @Test public void rejectsWrongPassword() throws GeneralSecurityException {
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, utf8("Secret."));
+
+        assertRejected(new CryptoEngine("wrong"), encoded);
+    }
+
+    @Test public void rejectsAnyFlippedBit() throws GeneralSecurityException {
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, utf8("Tamper with me."));
+
+        // The first byte is left alone, since without it the file is read as a legacy one.
+        for (int i = 1; i < encoded.length; i++) {
+            byte[] tampered = encoded.clone();
+            tampered[i] ^= 0x10;
+            assertRejected(engine, tampered);
+        }
+    }
+
+    @Test public void rejectsTruncatedFiles() throws GeneralSecurityException {
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, utf8("Cut short."));
+
+        for (int length : new int[] {MAGIC.length + 2, 30, encoded.length - 16, encoded.length - 1})
+            assertRejected(engine, Arrays.copyOf(encoded, length));
+    }
+
+    @Test public void rejectsExcessiveIterations() throws GeneralSecurityException {
+        byte[] encoded = EntryFormat.encode(engine, salt, ITERATIONS, utf8("Slow."));
+        ByteBuffer.wrap(encoded).putInt(MAGIC.length + 2 + salt.length, Integer.MAX_VALUE);
+
+        assertRejected(engine, encoded);
+    }
+
+    @Test public void rejectsEmptySalt() {
+        ByteBuffer encoded = ByteBuffer.allocate(MAGIC.length + 2 + 4 + 12 + 32);
+        encoded.put(MAGIC).put((byte) 2).put((byte) 0).putInt(ITERATIONS);
+
+        assertRejected(engine, encoded.array());
+    }
+
+    private void assertRejected(final CryptoEngine engine, final byte[] encoded) {
+        try {
+            EntryFormat.decode(engine, encoded);
+            fail("decoded " + encoded.length + " corrupt bytes");
+        } catch (GeneralSecurityException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] utf8(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records versions of an entry in a {@link History} in a temporary directory and reads them back,
+ * including from logs a crash or a bad disk has damaged.
+ */
+public class HistoryTest {
+    private static final LocalDate DATE = LocalDate.of(2015, 6, 21);
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private int iterations;
+    private CryptoEngine engine;
+    private byte[] salt;
+    private Path log;
+
+    @Before public void setUp() throws GeneralSecurityException {
+        // Key derivation at full strength would make every test take seconds.
+        iterations = Settings.KDF_ITERATIONS;
+        Settings.KDF_ITERATIONS = 1000;
+
+        engine = new CryptoEngine("password");
+        salt = EntryFormat.newSalt();
+        log = folder.getRoot().toPath().resolve("2015-06");
+    }
+
+    @After public void tearDown() {
+        Settings.KDF_ITERATIONS = iterations;
+    }
+
+    @Test public void rebuildsEveryVersion() throws IOException, GeneralSecurityException {
+        History history = history();
+        List<String> texts = new ArrayList<>();
+        StringBuilder text = new StringBuilder("Dear diary,\n");
+
+        for (int i = 0; i < 3 * Settings.HISTORY_CHECKPOINT; i++) {
+            text.insert(text.length() / 2, "edit " + i + "\n");
+            texts.add(text.toString());
+            history.append(engine, salt, DATE, null, text.toString());
+        }
+
+        List<History.Revision> revisions = history().revisions(engine, DATE);
+        assertEquals(texts.size(), revisions.size());
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals(texts.get(i), revisions.get(i).getText());
+            assertTrue(revisions.get(i).getTime() > 0);
+        }
+
+        // A full copy every so often keeps the chain of changes short.
+        List<Byte> kinds = kinds();
+        assertEquals(texts.size(), kinds.size());
+        for (int i = 0; i < kinds.size(); i++)
+            assertEquals("record " + i, i % (Settings.HISTORY_CHECKPOINT + 1) == 0 ? 0 : 1,
+                (int) kinds.get(i));
+    }
+
+    @Test public void recordsVersionFromBeforeHistory()
+        throws IOException, GeneralSecurityException {
+        History history = history();
+        assertFalse(history.contains(engine, DATE));
+
+        history.append(engine, salt, DATE, "Written long ago.", "Written today.");
+
+        List<History.Revision> revisions = history.revisions(engine, DATE);
+        assertEquals(2, revisions.size());
+        assertEquals("Written long ago.", revisions.get(0).getText());
+        assertEquals(0, revisions.get(0).getTime());
+        assertEquals("Written today.", revisions.get(1).getText());
+        assertTrue(history.contains(engine, DATE));
+    }
+
+    @Test public void skipsUnchangedSaves() throws IOException, GeneralSecurityException {
+        History history = history();
+        history.append(engine, salt, DATE, null, "The same.");
+        long length = Files.size(log);
+
+        history.append(engine, salt, DATE, "The same.", "The same.");
+        history().append(engine, salt, DATE, "The same.", "The same.");
+
+        assertEquals(length, Files.size(log));
+        assertEquals(1, history.revisions(engine, DATE).size());
+    }
+
+    @Test public void continuesFromLog() throws IOException, GeneralSecurityException {
+        String text = random(8192);
+        history().append(engine, salt, DATE, null, text);
+        long length = Files.size(log);
+
+        // A new instance has nothing in memory, so it must replay the log to record a change.
+        History history = history();
+        history.append(engine, salt, DATE, text, text + "!");
+
+        assertTrue("recorded a full copy", Files.size(log) - length < 1024);
+        assertEquals(text + "!", history.revisions(engine, DATE).get(1).getText());
+    }
+
+    @Test public void cutsOffIncompleteRecord() throws IOException, GeneralSecurityException {
+        history().append(engine, salt, DATE, null, "Before the crash.");
+
+        // The start of a record whose write never finished.
+        Files.write(log, ByteBuffer.allocate(10).putInt(1000).array(),
+            StandardOpenOption.APPEND);
+
+        History history = history();
+        history.append(engine, salt, DATE, null, "After the crash.");
+
+        List<History.Revision> revisions = history().revisions(engine, DATE);
+        assertEquals(2, revisions.size());
+        assertEquals("Before the crash.", revisions.get(0).getText());
+        assertEquals("After the crash.", revisions.get(1).getText());
+    }
+
+    @Test public void rejectsCorruptPayload() throws IOException, GeneralSecurityException {
+        history().append(engine, salt, DATE, null, "Intact.");
+
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(log, bytes);
+
+        try {
+            history().revisions(engine, DATE);
+            fail("read a corrupt record");
+        } catch (GeneralSecurityException e) {
+            // Expected.
+        }
+    }
+
+    @Test public void rejectsChangeWithoutCopy() throws IOException, GeneralSecurityException {
+        history().append(engine, salt, DATE, null, "Intact.");
+
+        // A change with nothing to apply it to.
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[Integer.BYTES + 1] = 1;
+        Files.write(log, bytes);
+
+        try {
+            history().revisions(engine, DATE);
+            fail("read a corrupt record");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private History history() {
+        return new History(folder.getRoot().toPath());
+    }
+
+    /**
+     * @return the kind of each record in the log
+     */
+    private List<Byte> kinds() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(log));
+        List<Byte> kinds = new ArrayList<>();
+
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            kinds.add(buffer.get(buffer.position() + 1));
+            buffer.position(buffer.position() + length);
+        }
+
+        return kinds;
+    }
+
+    private static String random(final int length) {
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length)
+            text.append((char) ('a' + random.nextInt(26)));
+
+        return text.toString();
+    }
+}
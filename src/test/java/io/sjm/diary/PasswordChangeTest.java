@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Changes the password of a diary in a temporary directory, both in one go and by resuming a
+ * change that was interrupted part way through.
+ */
+public class PasswordChangeTest {
+    private static final LocalDate FIRST = LocalDate.of(2015, 6, 1);
+    private static final int ENTRIES = 20;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private int iterations;
+    private Path root;
+    private DiaryStore store;
+
+    @Before public void setUp() throws IOException, GeneralSecurityException {
+        // Key derivation at full strength would make every test take seconds.
+        iterations = Settings.KDF_ITERATIONS;
+        Settings.KDF_ITERATIONS = 1000;
+
+        root = folder.getRoot().toPath();
+        store = new DiaryStore(root);
+        store.setPassword("old");
+        for (int i = 0; i < ENTRIES; i++) {
+            store.saveEntry(new Entry(FIRST.plusDays(i), "Entry " + i + "."));
+            store.saveEntry(new Entry(FIRST.plusDays(i), "Entry " + i + ", edited."));
+        }
+        // Written at once when there is no index yet.
+        store.getSearchIndex();
+    }
+
+    @After public void tearDown() throws IOException {
+        store.close();
+        Settings.KDF_ITERATIONS = iterations;
+    }
+
+    @Test public void changesPassword() throws IOException, GeneralSecurityException {
+        List<Integer> progress = new ArrayList<>();
+        PasswordChange.run(store, "old", "new", (done, total) -> {
+            assertEquals(ENTRIES, (int) total);
+            synchronized (progress) {
+                progress.add(done);
+            }
+        });
+
+        assertTrue(store.hasPassword("new"));
+        assertEquals(ENTRIES + 1, progress.size());
+        assertChanged();
+    }
+
+    @Test public void resumesInterruptedChange() throws IOException, GeneralSecurityException {
+        interrupt();
+
+        PasswordChange.run(store, "old", "new", (done, total) -> { });
+
+        assertChanged();
+    }
+
+    @Test public void refusesWrongPasswordsOnResume()
+        throws IOException, GeneralSecurityException {
+        interrupt();
+        byte[] journal = Files.readAllBytes(root.resolve(Settings.JOURNALFILE));
+        List<byte[]> entries = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++)
+            entries.add(store.getStorage().read(FIRST.plusDays(i)));
+
+        for (String[] passwords : new String[][] {{"old", "wrong"}, {"wrong", "new"}}) {
+            try {
+                PasswordChange.run(store, passwords[0], passwords[1], (done, total) -> { });
+                fail("resumed with " + passwords[0] + " and " + passwords[1]);
+            } catch (GeneralSecurityException e) {
+                // Expected.
+            }
+        }
+
+        assertTrue(PasswordChange.inProgress(store));
+        assertArrayEquals(journal, Files.readAllBytes(root.resolve(Settings.JOURNALFILE)));
+        for (int i = 0; i < ENTRIES; i++)
+            assertArrayEquals(entries.get(i), store.getStorage().read(FIRST.plusDays(i)));
+        assertTrue(store.hasPassword("old"));
+    }
+
+    /**
+     * Leave the diary as a change that crashed would: the first few entries re-encrypted and
+     * recorded in the journal, and the next one re-encrypted but not yet recorded.
+     */
+    private void interrupt() throws IOException, GeneralSecurityException {
+        CryptoEngine oldEngine = new CryptoEngine("old");
+        CryptoEngine newEngine = new CryptoEngine("new");
+        StringBuilder journal = new StringBuilder("password change started 2015-06-30T12:00:00Z\n");
+
+        for (int i = 0; i < 4; i++) {
+            LocalDate date = FIRST.plusDays(i);
+            byte[] plaintext = EntryFormat.decode(oldEngine, store.getStorage().read(date));
+            store.getStorage().write(date, EntryFormat.encode(newEngine, store.getSalt(),
+                Settings.KDF_ITERATIONS, plaintext));
+            if (i < 3)
+                journal.append(date).append('\n');
+        }
+
+        Files.write(root.resolve(Settings.JOURNALFILE),
+            journal.toString().getBytes(StandardCharsets.UTF_8));
+        assertTrue(PasswordChange.inProgress(store));
+    }
+
+    /**
+     * Check that everything can be read with the new password and nothing with the old one.
+     */
+    private void assertChanged() throws IOException, GeneralSecurityException {
+        assertFalse(PasswordChange.inProgress(store));
+
+        DiaryStore reopened = new DiaryStore(root);
+        reopened.setPassword("new");
+        try {
+            for (int i = 0; i < ENTRIES; i++) {
+                LocalDate date = FIRST.plusDays(i);
+                assertEquals("Entry " + i + ", edited.", reopened.loadEntry(date).getText());
+
+                List<History.Revision> revisions = reopened.getRevisions(date);
+                assertEquals(2, revisions.size());
+                assertEquals("Entry " + i + ".", revisions.get(0).getText());
+            }
+
+            CryptoEngine newEngine = new CryptoEngine("new");
+            EntryFormat.decode(newEngine, Files.readAllBytes(reopened.getSearchIndexPath()));
+        } finally {
+            reopened.close();
+        }
+
+        DiaryStore old = new DiaryStore(root);
+        old.setPassword("old");
+        try {
+            old.loadEntry(FIRST);
+            fail("read an entry with the old password");
+        } catch (GeneralSecurityException e) {
+            // Expected.
+        } finally {
+            old.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015, Simon Morgan
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.sjm.diary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Stores entries in a {@link SegmentStorage} in a temporary directory and reads them back, both
+ * from the same instance and from a new one, as after a restart or a crash.
+ */
+public class SegmentStorageTest {
+    private static final LocalDate DATE = LocalDate.of(2015, 6, 21);
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private Path segment;
+    private List<SegmentStorage> opened = new ArrayList<>();
+
+    @Before public void setUp() {
+        root = folder.getRoot().toPath();
+        segment = root.resolve("2015" + SegmentStorage.EXTENSION);
+    }
+
+    @After public void tearDown() throws IOException {
+        for (SegmentStorage storage : opened)
+            storage.close();
+    }
+
+    @Test public void roundTrips() throws IOException {
+        Map<LocalDate, byte[]> entries = new LinkedHashMap<>();
+        entries.put(LocalDate.of(2015, 1, 1), bytes(1, 100));
+        entries.put(DATE, bytes(2, 5000));
+        entries.put(LocalDate.of(2015, 12, 31), bytes(3, 1));
+        entries.put(LocalDate.of(2016, 12, 31), bytes(4, 10));
+
+        SegmentStorage storage = open();
+        for (Map.Entry<LocalDate, byte[]> entry : entries.entrySet())
+            storage.write(entry.getKey(), entry.getValue());
+
+        for (SegmentStorage reader : Arrays.asList(storage, open())) {
+            for (Map.Entry<LocalDate, byte[]> entry : entries.entrySet())
+                assertArrayEquals(entry.getValue(), reader.read(entry.getKey()));
+            assertEquals(new ArrayList<>(entries.keySet()),
+                new ArrayList<>(reader.list().keySet()));
+            assertEquals(1 << 20, reader.scanMonth(YearMonth.from(DATE)));
+            assertEquals(0, reader.scanMonth(YearMonth.of(2015, 7)));
+            assertEquals(0, reader.scanMonth(YearMonth.of(2014, 6)));
+
+            Map<LocalDate, byte[]> scanned = new LinkedHashMap<>();
+            reader.scan(entries.keySet(), scanned::put);
+            assertEquals(entries.size(), scanned.size());
+            for (Map.Entry<LocalDate, byte[]> entry : scanned.entrySet())
+                assertArrayEquals(entries.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Test public void replacesAndDeletes() throws IOException {
+        SegmentStorage storage = open();
+        storage.write(DATE, bytes(1, 100));
+        storage.write(DATE, bytes(2, 200));
+        storage.write(DATE.plusDays(1), bytes(3, 300));
+        storage.delete(DATE.plusDays(1));
+        storage.delete(DATE.plusDays(2));
+
+        SegmentStorage reopened = open();
+        assertArrayEquals(bytes(2, 200), reopened.read(DATE));
+        assertEquals(1, reopened.list().size());
+        assertMissing(reopened, DATE.plusDays(1));
+    }
+
+    @Test public void deletesEmptySegment() throws IOException {
+        SegmentStorage storage = open();
+        storage.write(DATE, bytes(1, 100));
+        storage.delete(DATE);
+
+        assertFalse(Files.exists(segment));
+        assertTrue(storage.list().isEmpty());
+        assertEquals(0, storage.scanMonth(YearMonth.from(DATE)));
+        assertMissing(storage, DATE);
+
+        // The year can be written to again.
+        storage.write(DATE, bytes(2, 100));
+        assertArrayEquals(bytes(2, 100), open().read(DATE));
+    }
+
+    @Test public void compacts() throws IOException, InterruptedException {
+        SegmentStorage storage = open();
+        storage.write(DATE.minusDays(1), bytes(0, 1000));
+        for (int i = 0; i < 20; i++)
+            storage.write(DATE, bytes(i, 10_000));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.size(segment) > 100_000 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertTrue("didn't compact", Files.size(segment) < 100_000);
+        for (SegmentStorage reader : Arrays.asList(storage, open())) {
+            assertArrayEquals(bytes(0, 1000), reader.read(DATE.minusDays(1)));
+            assertArrayEquals(bytes(19, 10_000), reader.read(DATE));
+        }
+    }
+
+    @Test public void survivesInterruptedCompaction() throws IOException {
+        SegmentStorage storage = open();
+        storage.write(DATE, bytes(1, 1000));
+        storage.close();
+
+        // A compaction that crashed before replacing the segment leaves its temporary file.
+        Path temp = Files.createTempFile(root, segment.getFileName().toString(), ".tmp");
+        Files.write(temp, bytes(2, 3000));
+
+        SegmentStorage reopened = open();
+        assertArrayEquals(bytes(1, 1000), reopened.read(DATE));
+        assertEquals(1, reopened.list().size());
+
+        reopened.write(DATE, bytes(3, 1000));
+        assertArrayEquals(bytes(3, 1000), open().read(DATE));
+    }
+
+    @Test public void survivesTornWrite() throws IOException {
+        SegmentStorage storage = open();
+        storage.write(DATE, bytes(1, 1000));
+        storage.close();
+
+        // A write that crashed after appending the entry but before pointing its slot at it.
+        Files.write(segment, bytes(2, 1000), StandardOpenOption.APPEND);
+
+        SegmentStorage reopened = open();
+        assertArrayEquals(bytes(1, 1000), reopened.read(DATE));
+
+        reopened.write(DATE.plusDays(1), bytes(3, 1000));
+        SegmentStorage again = open();
+        assertArrayEquals(bytes(1, 1000), again.read(DATE));
+        assertArrayEquals(bytes(3, 1000), again.read(DATE.plusDays(1)));
+    }
+
+    @Test public void rejectsOtherFiles() throws IOException {
+        Files.write(segment, bytes(1, 10_000));
+        assertUnreadable(open());
+
+        Files.write(segment, new byte[] {'D', 'S', 'E', 'G', 0, 0, 0, 1});
+        assertUnreadable(open());
+
+        ByteBuffer header = ByteBuffer.allocate(10_000);
+        header.put(new byte[] {'D', 'S', 'E', 'G'}).putInt(2);
+        Files.write(segment, header.array());
+        assertUnreadable(open());
+    }
+
+    private SegmentStorage open() {
+        SegmentStorage storage = new SegmentStorage(root);
+        opened.add(storage);
+
+        return storage;
+    }
+
+    private static void assertMissing(final Storage storage, final LocalDate date)
+        throws IOException {
+        try {
+            storage.read(date);
+            fail("read a deleted entry");
+        } catch (NoSuchFileException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertUnreadable(final Storage storage) {
+        try {
+            storage.read(DATE);
+            fail("read a file that isn't a segment");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] bytes(final int seed, final int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+
+        return bytes;
+    }
+}